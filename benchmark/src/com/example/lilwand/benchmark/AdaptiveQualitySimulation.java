@@ -0,0 +1,138 @@
+package com.example.lilwand.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.example.lilwand.AdaptiveQualityController;
+
+/**
+ * Drives the AdaptiveQualityController against a simulated link whose bandwidth changes over time,
+ * and prints one line per simulated second: the bandwidth, the chosen quality and downscaling, the
+ * frame rate and the ack round trip. Run it the same way as BenchmarkMain:
+ *
+ * <pre>
+ * java -cp benchmark/bin com.example.lilwand.benchmark.AdaptiveQualitySimulation [targetMillis]
+ * </pre>
+ *
+ * The link model is a single serial channel: each image occupies it for size / bandwidth, then is
+ * decoded and acknowledged after a fixed delay. Image size follows a rough fit of JPEG sizes for a
+ * 640x480 preview.
+ *
+ * A phase counts as settled SETTLE after its bandwidth changed. The run fails, with exit status 1,
+ * if in a settled second the round trip was above the policy's hysteresis band while the
+ * controller still had quality or resolution to give up, if the scale changed or the quality went
+ * down once settled, or if two phases with the same bandwidth settled on a different scale or more
+ * than one quality step apart. The quality may still creep up within the band.
+ */
+public class AdaptiveQualitySimulation {
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final long FRAME_INTERVAL = 33 * 1000000L; // camera delivers 30 fps
+	private static final long ACK_DELAY = 15 * 1000000L; // decode and return path
+	private static final int WINDOW = 3;
+	private static final long SETTLE = 10 * 1000000000L; // ignored after every bandwidth change
+
+	// seconds the phase lasts, link bytes per second
+	private static final int[][] PHASES = { { 20, 80 * 1024 }, { 20, 20 * 1024 }, { 20, 200 * 1024 },
+			{ 20, 8 * 1024 }, { 20, 80 * 1024 } };
+
+	public static void main(String[] args) {
+		AdaptiveQualityController.Policy policy = new AdaptiveQualityController.Policy();
+		if (args.length > 0) {
+			policy.targetLatencyNanos = Long.parseLong(args[0]) * 1000000L;
+		}
+		AdaptiveQualityController controller = new AdaptiveQualityController(policy);
+
+		ArrayDeque<long[]> inFlight = new ArrayDeque<long[]>(); // { sent, acked, image number }
+		int nextImage = 0;
+		long now = 0;
+		long linkFreeAt = 0;
+		long phaseStart = 0;
+		int settledSeconds = 0;
+		int goodSeconds = 0;
+		int elapsedSeconds = 0;
+		StringBuilder failures = new StringBuilder();
+		Map<Integer, int[]> settledSettings = new HashMap<Integer, int[]>(); // by bandwidth
+
+		System.out.println(String.format(Locale.US, "%5s %8s %8s %8s %6s %8s", "t(s)", "KB/s", "quality", "scale",
+				"fps", "rtt(ms)"));
+		for (int[] phase : PHASES) {
+			double bytesPerNano = phase[1] / 1e9;
+			int[] settings = null; // quality and divisor once settled
+			for (int second = 0; second < phase[0]; second++) {
+				long secondEnd = ++elapsedSeconds * 1000000000L;
+				int frames = 0;
+				long rttSum = 0;
+				int rttCount = 0;
+				for (; now < secondEnd; now += FRAME_INTERVAL) {
+					// deliver the acks due by now
+					while (!inFlight.isEmpty() && inFlight.peekFirst()[1] <= now) {
+						long[] image = inFlight.pollFirst();
+						long rtt = image[1] - image[0];
+						controller.onImagesAcked((int) image[2], rtt, image[1]);
+						rttSum += rtt;
+						rttCount++;
+					}
+					if (inFlight.size() >= WINDOW) {
+						continue;
+					}
+
+					int bytes = imageSize(controller.getQuality(), controller.getScaleDivisor());
+					controller.onImageSent(nextImage, bytes);
+					long start = Math.max(now, linkFreeAt);
+					linkFreeAt = start + (long) (bytes / bytesPerNano);
+					inFlight.addLast(new long[] { now, linkFreeAt + ACK_DELAY, nextImage++ });
+					frames++;
+				}
+
+				double rttMillis = rttCount == 0 ? -1 : rttSum / 1e6 / rttCount;
+				System.out.println(String.format(Locale.US, "%5d %8d %8d %8d %6d %8.1f", elapsedSeconds,
+						phase[1] / 1024, controller.getQuality(), controller.getScaleDivisor(), frames, rttMillis));
+				if (now - phaseStart > SETTLE) {
+					settledSeconds++;
+					int quality = controller.getQuality();
+					int divisor = controller.getScaleDivisor();
+					boolean atFloor = quality == policy.minQuality && divisor == policy.maxScaleDivisor;
+					if (rttCount > 0 && rttMillis * 1e6 <= policy.targetLatencyNanos * (1 + policy.hysteresis)) {
+						goodSeconds++;
+					} else if (!atFloor) {
+						failures.append(String.format(Locale.US, "  %ds: round trip %.1f ms over target at quality %d"
+								+ " scale %d%n", elapsedSeconds, rttMillis, quality, divisor));
+					}
+					if (settings == null) {
+						settings = new int[] { quality, divisor };
+					} else if (quality < settings[0] || divisor != settings[1]) {
+						failures.append(String.format(Locale.US, "  %ds: quality %d scale %d after settling on quality"
+								+ " %d scale %d%n", elapsedSeconds, quality, divisor, settings[0], settings[1]));
+					}
+					settings[0] = quality;
+					settings[1] = divisor;
+				}
+			}
+			phaseStart = now;
+
+			int[] previous = settledSettings.put(phase[1], settings);
+			if (previous != null && settings != null
+					&& (Math.abs(previous[0] - settings[0]) > policy.increaseStep || previous[1] != settings[1])) {
+				failures.append(String.format(Locale.US, "  %ds: settled on quality %d scale %d at %d KB/s, before on"
+						+ " quality %d scale %d%n", elapsedSeconds, settings[0], settings[1], phase[1] / 1024,
+						previous[0], previous[1]));
+			}
+		}
+		System.out.println(String.format(Locale.US, "within target %d of %d settled seconds", goodSeconds,
+				settledSeconds));
+		if (failures.length() > 0) {
+			System.out.print("FAILED\n" + failures);
+			System.exit(1);
+		}
+		System.out.println("ok");
+	}
+
+	// rough JPEG size in bytes of the downscaled preview at a quality
+	private static int imageSize(int quality, int divisor) {
+		int pixels = (WIDTH / divisor) * (HEIGHT / divisor);
+		return (int) (pixels * (0.02 + 0.0035 * quality)) + 600;
+	}
+}
@@ -0,0 +1,38 @@
+package com.example.lilwand.benchmark;
+
+import java.io.File;
+
+/**
+ * Runs the protocol, buffering and transport benchmarks on a plain JVM, at payload sizes matching
+ * the JPEG frames the camera sends. Only the Android independent classes of the app are needed, so
+ * from the project root:
+ *
+ * <pre>
+ * javac -d benchmark/bin -sourcepath src:benchmark/src benchmark/src/com/example/lilwand/benchmark/*.java
+ * java -cp benchmark/bin com.example.lilwand.benchmark.BenchmarkMain [filter] [frameDir]
+ * </pre>
+ *
+ * Only benchmarks whose name contains the filter are run. The codec benchmarks use the recorded
+ * NV21 frames in frameDir, see CodecBenchmarks. Keep the output of each release to compare against
+ * the next.
+ */
+public class BenchmarkMain {
+	private static final int[] PAYLOAD_SIZES = { 5 * 1024, 20 * 1024, 40 * 1024, 100 * 1024 };
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : null;
+		File frameDir = args.length > 1 ? new File(args[1]) : null;
+		Harness harness = new Harness(5, 10, 200, filter);
+
+		Harness.printHeader();
+		for (int payloadSize : PAYLOAD_SIZES) {
+			FramingBenchmarks.run(harness, payloadSize);
+			PoolBenchmarks.run(harness, payloadSize);
+			QueueBenchmarks.run(harness, payloadSize);
+			TransportBenchmarks.run(harness, payloadSize);
+		}
+		for (CodecBenchmarks.Frame frame : CodecBenchmarks.loadFrames(frameDir)) {
+			CodecBenchmarks.run(harness, frame);
+		}
+	}
+}
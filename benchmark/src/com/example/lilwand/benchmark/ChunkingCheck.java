@@ -0,0 +1,189 @@
+package com.example.lilwand.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.example.lilwand.FrameBuffer;
+import com.example.lilwand.FrameBufferPool;
+import com.example.lilwand.FrameEncoder;
+import com.example.lilwand.FrameReader;
+import com.example.lilwand.Protocol;
+
+/**
+ * Checks that FrameReader puts chunked packets back together, with control packets written
+ * between the chunks as the writer thread does, that a damaged or missing chunk costs only the
+ * packet it belonged to, and that stray bytes passing for a header don't swallow the packets after
+ * them. Run it the same way as BenchmarkMain:
+ *
+ * <pre>
+ * java -cp benchmark/bin com.example.lilwand.benchmark.ChunkingCheck
+ * </pre>
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class ChunkingCheck {
+	private static final int[] PAYLOAD_SIZES = { 1, Protocol.MAX_CHUNK_LENGTH, Protocol.MAX_CHUNK_LENGTH + 1,
+			5 * 1024, 40 * 1024, 100 * 1024 + 3 };
+	private static final int IMAGE_SIZE = 5 * 1024; // three chunks
+	private static final int SHORT_READ = 7; // bytes handed back per read at most
+
+	private final FrameEncoder mEncoder = new FrameEncoder();
+	private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+	private final List<byte[]> mExpected = new ArrayList<byte[]>(); // type byte, then payload
+	private final Random mRandom = new Random(7);
+
+	public static void main(String[] args) throws IOException {
+		int failures = 0;
+
+		// every packet comes back intact through a stream that hands over a few bytes at a time
+		ChunkingCheck check = new ChunkingCheck();
+		for (int size : PAYLOAD_SIZES) {
+			check.writeImage(size, -1, true);
+		}
+		failures += check.run("round trip", new ShortReadInputStream(check.mOut.toByteArray()), 0);
+
+		// a flipped bit in the middle chunk of an image drops that image only
+		check = new ChunkingCheck();
+		check.writeImage(IMAGE_SIZE, -1, true);
+		int damaged = check.mOut.size() + FrameEncoder.getPacketLength(Protocol.CHUNK_HEADER_LENGTH
+				+ Protocol.MAX_CHUNK_LENGTH) + FrameEncoder.getPacketLength(1) + Protocol.PACKET_HEADER_LENGTH + 100;
+		check.writeImage(IMAGE_SIZE, -1, false);
+		check.writeImage(IMAGE_SIZE, -1, true);
+		byte[] stream = check.mOut.toByteArray();
+		stream[damaged] ^= 1;
+		failures += check.run("damaged chunk", new ByteArrayInputStream(stream), 1);
+
+		// a chunk that never arrives drops its image only
+		check = new ChunkingCheck();
+		check.writeImage(IMAGE_SIZE, -1, true);
+		check.writeImage(IMAGE_SIZE, 1, false);
+		check.writeImage(IMAGE_SIZE, -1, true);
+		failures += check.run("missing chunk", new ByteArrayInputStream(check.mOut.toByteArray()), 1);
+
+		// a false header claiming the packets after it as its payload costs nothing but itself
+		check = new ChunkingCheck();
+		check.writeFalseHeader(Protocol.HEADER_IMAGE, 20 * 1024);
+		for (int i = 0; i < 8; i++) {
+			check.writeImage(IMAGE_SIZE, -1, true);
+		}
+		failures += check.run("false header", new ShortReadInputStream(check.mOut.toByteArray()), 1);
+
+		// the same for a false chunk header
+		check = new ChunkingCheck();
+		check.writeFalseHeader(Protocol.HEADER_IMAGE | Protocol.FLAG_CHUNK, Protocol.CHUNK_HEADER_LENGTH
+				+ Protocol.MAX_CHUNK_LENGTH);
+		check.writeImage(IMAGE_SIZE, -1, true);
+		check.writeImage(IMAGE_SIZE, -1, true);
+		failures += check.run("false chunk header", new ShortReadInputStream(check.mOut.toByteArray()), 1);
+
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Write a random image as chunks, with a control packet after each chunk.
+	 *
+	 * @param lost
+	 *            The index of a chunk to leave out, or -1
+	 * @param arrives
+	 *            Whether the reader should deliver the image
+	 */
+	private void writeImage(int size, int lost, boolean arrives) throws IOException {
+		byte[] payload = new byte[size];
+		mRandom.nextBytes(payload);
+		FrameBuffer image = FrameBuffer.wrap(Protocol.HEADER_IMAGE, payload);
+		int chunk = 0;
+		for (int offset = 0; offset < size; offset += Protocol.MAX_CHUNK_LENGTH, chunk++) {
+			int count = Math.min(Protocol.MAX_CHUNK_LENGTH, size - offset);
+			if (chunk != lost) {
+				mEncoder.writeChunk(mOut, image, offset, count);
+			}
+			if (arrives && offset + count == size) {
+				// complete once its last chunk is read, ahead of the control packet that follows
+				mExpected.add(packet(Protocol.HEADER_IMAGE, payload, size));
+			}
+			byte[] control = new byte[] { (byte) chunk };
+			mEncoder.writeFrame(mOut, Protocol.HEADER_CONTROLLER_CMD, control, 0, control.length);
+			mExpected.add(packet(Protocol.HEADER_CONTROLLER_CMD, control, control.length));
+		}
+	}
+
+	/**
+	 * Write the header of a packet with nothing after it, as stray bytes that happen to pass the
+	 * header's checks.
+	 */
+	private void writeFalseHeader(int type, int length) throws IOException {
+		ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		mEncoder.writeFrame(packet, type, new byte[length], 0, length);
+		mOut.write(packet.toByteArray(), 0, Protocol.PACKET_HEADER_LENGTH);
+	}
+
+	/**
+	 * Read the stream to the end and compare what comes out with what should.
+	 */
+	private int run(String name, InputStream in, int corrupt) throws IOException {
+		FrameReader reader = new FrameReader(in, new FrameBufferPool(4));
+		List<byte[]> actual = new ArrayList<byte[]>();
+		try {
+			while (true) {
+				FrameBuffer frame = reader.readFrame();
+				actual.add(packet(frame.getType(), frame.getData(), frame.getLength()));
+				frame.release();
+			}
+		} catch (EOFException e) {
+			// done
+		}
+
+		StringBuilder problems = new StringBuilder();
+		if (actual.size() != mExpected.size()) {
+			problems.append(" read ").append(actual.size()).append(" packets, expected ").append(mExpected.size())
+					.append(";");
+		}
+		for (int i = 0; i < Math.min(actual.size(), mExpected.size()); i++) {
+			if (!Arrays.equals(actual.get(i), mExpected.get(i))) {
+				problems.append(" packet ").append(i).append(" differs;");
+				break;
+			}
+		}
+		if (reader.getCorruptFrameCount() != corrupt) {
+			problems.append(" ").append(reader.getCorruptFrameCount()).append(" corrupt packets counted, expected ")
+					.append(corrupt).append(";");
+		}
+		if (problems.length() == 0) {
+			System.out.println(name + ": ok");
+			return 0;
+		}
+		System.out.println(name + ": FAILED" + problems);
+		return 1;
+	}
+
+	private static byte[] packet(int type, byte[] payload, int length) {
+		byte[] packet = new byte[1 + length];
+		packet[0] = (byte) type;
+		System.arraycopy(payload, 0, packet, 1, length);
+		return packet;
+	}
+
+	/**
+	 * Hands over at most SHORT_READ bytes per read, like a socket that delivers a packet in pieces.
+	 */
+	private static class ShortReadInputStream extends FilterInputStream {
+		ShortReadInputStream(byte[] data) {
+			super(new ByteArrayInputStream(data));
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, SHORT_READ));
+		}
+	}
+}
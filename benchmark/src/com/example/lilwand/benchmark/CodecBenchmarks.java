@@ -0,0 +1,146 @@
+package com.example.lilwand.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.example.lilwand.LumaDeflate;
+import com.example.lilwand.Nv21;
+
+/**
+ * Encoding and decoding preview frames with the LumaDeflate codec, plus the NV21 downscale the
+ * camera applies before encoding. Frames are read from a directory of raw NV21 dumps named
+ * <code>&lt;anything&gt;-&lt;width&gt;x&lt;height&gt;.nv21</code>, e.g. preview buffers written out
+ * from onPreviewFrame; without one a synthetic 640x480 frame is used. The JPEG codec needs the
+ * platform's libjpeg and can only be measured on a device, through the encode_ms column of the link
+ * stats.
+ */
+public class CodecBenchmarks {
+	private static final Pattern FRAME_NAME = Pattern.compile(".*-(\\d+)x(\\d+)\\.nv21");
+
+	/**
+	 * A recorded preview frame.
+	 */
+	public static class Frame {
+		final String mName;
+		final byte[] mData;
+		final int mWidth;
+		final int mHeight;
+
+		Frame(String name, byte[] data, int width, int height) {
+			mName = name;
+			mData = data;
+			mWidth = width;
+			mHeight = height;
+		}
+	}
+
+	public static void run(Harness harness, Frame frame) throws Exception {
+		final byte[] nv21 = frame.mData;
+		final int width = frame.mWidth;
+		final int height = frame.mHeight;
+		final int pixels = width * height;
+		final LumaDeflate codec = new LumaDeflate();
+		final FramingBenchmarks.NullOutputStream out = new FramingBenchmarks.NullOutputStream();
+		String name = "[" + frame.mName + "]";
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		codec.encode(nv21, width, height, encoded);
+		final byte[] payload = encoded.toByteArray();
+		final int[] argb = new int[pixels];
+
+		harness.run("codec.lumaDeflateEncode" + name, pixels, new Harness.Benchmark() {
+			public void run() throws IOException {
+				codec.encode(nv21, width, height, out);
+			}
+		});
+		harness.run("codec.lumaDeflateDecode" + name, pixels, new Harness.Benchmark() {
+			public void run() throws Exception {
+				codec.decode(payload, 0, payload.length, argb);
+				Harness.sink += argb[pixels - 1];
+			}
+		});
+
+		final byte[] scaled = new byte[Nv21.getFrameSize(Nv21.getScaledSize(width, 2), Nv21.getScaledSize(height, 2))];
+		harness.run("codec.nv21Downscale2" + name, Nv21.getFrameSize(width, height), new Harness.Benchmark() {
+			public void run() {
+				Nv21.downscale(nv21, width, height, 2, scaled);
+				Harness.sink += scaled[0];
+			}
+		});
+		Harness.sink += out.getCount();
+
+		System.out.println(String.format(Locale.US, "  lumaDeflate%s: %d pixels -> %d bytes (%.1f bits/pixel)", name,
+				pixels, payload.length, payload.length * 8.0 / pixels));
+	}
+
+	/**
+	 * Read the recorded frames in a directory, or make up one frame if dir is null or holds none.
+	 */
+	public static List<Frame> loadFrames(File dir) throws IOException {
+		List<Frame> frames = new ArrayList<Frame>();
+		File[] files = dir == null ? null : dir.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				Matcher m = FRAME_NAME.matcher(file.getName());
+				if (!m.matches()) {
+					continue;
+				}
+				int width = Integer.parseInt(m.group(1));
+				int height = Integer.parseInt(m.group(2));
+				byte[] data = readFile(file);
+				if (data.length < Nv21.getFrameSize(width, height)) {
+					System.err.println("skipping short frame " + file);
+					continue;
+				}
+				frames.add(new Frame(file.getName(), data, width, height));
+			}
+		}
+		if (frames.isEmpty()) {
+			frames.add(syntheticFrame(640, 480));
+		}
+		return frames;
+	}
+
+	// a smooth gradient with sensor noise and a few flat objects, roughly like a tripod shot
+	private static Frame syntheticFrame(int width, int height) {
+		byte[] data = new byte[Nv21.getFrameSize(width, height)];
+		Random random = new Random(42);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int value = 40 + x * 120 / width + y * 60 / height + random.nextInt(5);
+				if ((x / 80 + y / 60) % 5 == 0) {
+					value = 200 + random.nextInt(3);
+				}
+				data[y * width + x] = (byte) value;
+			}
+		}
+		Arrays.fill(data, width * height, data.length, (byte) 128);
+		return new Frame("synthetic-" + width + "x" + height, data, width, height);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
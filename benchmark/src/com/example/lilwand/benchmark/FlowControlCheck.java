@@ -0,0 +1,150 @@
+package com.example.lilwand.benchmark;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.example.lilwand.CreditWindow;
+import com.example.lilwand.LinkStats;
+
+/**
+ * Checks that the camera's credit window recovers from images and acks lost on the link. A camera
+ * thread sends numbered images through a CreditWindow and a controller thread acknowledges each
+ * one it receives, the way MainActivity does, over an in-memory link that loses one image and one
+ * ack. Run it the same way as BenchmarkMain:
+ *
+ * <pre>
+ * java -cp benchmark/bin com.example.lilwand.benchmark.FlowControlCheck
+ * </pre>
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class FlowControlCheck {
+	private static final int WINDOW = 2; // two losses would have stalled the old window for good
+	private static final int IMAGES = 50;
+	private static final int LOST_IMAGE = 10;
+	private static final int LOST_ACK = 20;
+	private static final long NO_TIMEOUT = 60 * 1000; // ms, recovery must not wait for expiry
+	private static final long SHORT_TIMEOUT = 200; // ms
+	private static final long DEADLINE = 5000; // ms
+
+	public static void main(String[] args) throws InterruptedException {
+		int failures = 0;
+		failures += checkLostImageAndAck();
+		failures += checkAllInFlightLost();
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Lose one image and one ack in the middle of a stream. The acks that follow must cover both,
+	 * without waiting for credits to expire, and every round trip must be measured against the
+	 * image it names.
+	 */
+	private static int checkLostImageAndAck() throws InterruptedException {
+		final CreditWindow window = new CreditWindow(WINDOW, NO_TIMEOUT);
+		final LinkStats stats = new LinkStats();
+		final LinkedBlockingQueue<Integer> link = new LinkedBlockingQueue<Integer>();
+		final long[] sendStart = new long[IMAGES];
+		final long[] sendEnd = new long[IMAGES];
+		final int[] rttErrors = new int[1];
+
+		Thread controller = new Thread("controller") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						int image = link.take();
+						if (image < 0) {
+							return;
+						}
+						Thread.sleep(1); // decode
+						if (image == LOST_ACK) {
+							continue;
+						}
+						// the ack crosses the link and the camera takes it in
+						long before = System.nanoTime();
+						if (window.ack(image) > 0) {
+							long rtt = stats.recordImageAcked(image);
+							long after = System.nanoTime();
+							if (rtt < before - sendEnd[image] || rtt > after - sendStart[image]) {
+								rttErrors[0]++;
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+		controller.start();
+
+		long deadline = System.currentTimeMillis() + DEADLINE;
+		int sent = 0;
+		for (int i = 0; i < IMAGES; i++) {
+			int image = window.acquire();
+			sendStart[image] = System.nanoTime();
+			stats.recordImageSent(image);
+			sendEnd[image] = System.nanoTime();
+			if (image != LOST_IMAGE) {
+				link.put(image);
+			}
+			sent++;
+		}
+		while (window.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		link.put(-1);
+		controller.join();
+
+		StringBuilder result = new StringBuilder();
+		if (sent != IMAGES) {
+			result.append(" sent ").append(sent).append(" of ").append(IMAGES).append(" images;");
+		}
+		if (window.getInFlight() != 0) {
+			result.append(" ").append(window.getInFlight()).append(" credits never came back;");
+		}
+		if (window.getExpiredCount() != 0) {
+			result.append(" ").append(window.getExpiredCount()).append(" credits had to expire;");
+		}
+		if (rttErrors[0] != 0) {
+			result.append(" ").append(rttErrors[0]).append(" round trips paired with the wrong image;");
+		}
+		return report("lost image and lost ack", result);
+	}
+
+	/**
+	 * Lose every image in flight, so no ack ever comes. The oldest credit must expire after the
+	 * timeout, and the late ack that turns up afterwards must be ignored.
+	 */
+	private static int checkAllInFlightLost() throws InterruptedException {
+		CreditWindow window = new CreditWindow(1, SHORT_TIMEOUT);
+		StringBuilder result = new StringBuilder();
+
+		int lost = window.acquire();
+		long start = System.nanoTime();
+		int next = window.acquire();
+		long waited = (System.nanoTime() - start) / 1000000L;
+		if (waited < SHORT_TIMEOUT - 1 || waited > DEADLINE) {
+			result.append(" waited ").append(waited).append(" ms for the credit to expire;");
+		}
+		if (window.getExpiredCount() != 1) {
+			result.append(" ").append(window.getExpiredCount()).append(" credits expired;");
+		}
+		if (window.ack(lost) != 0 || window.getInFlight() != 1) {
+			result.append(" the late ack for image ").append(lost).append(" was counted;");
+		}
+		if (window.ack(next) != 1 || window.getInFlight() != 0) {
+			result.append(" the ack for image ").append(next).append(" was not counted;");
+		}
+		return report("every image in flight lost", result);
+	}
+
+	private static int report(String name, StringBuilder problems) {
+		if (problems.length() == 0) {
+			System.out.println(name + ": ok");
+			return 0;
+		}
+		System.out.println(name + ": FAILED" + problems);
+		return 1;
+	}
+}
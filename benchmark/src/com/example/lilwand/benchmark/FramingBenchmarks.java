@@ -0,0 +1,118 @@
+package com.example.lilwand.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.example.lilwand.FrameBuffer;
+import com.example.lilwand.FrameBufferPool;
+import com.example.lilwand.FrameEncoder;
+import com.example.lilwand.FrameReader;
+import com.example.lilwand.Protocol;
+
+/**
+ * Encoding and decoding of image packets, comparing the legacy code paths with FrameEncoder and
+ * FrameReader.
+ */
+public class FramingBenchmarks {
+	// packets per decode operation, so the reader gets to reuse its pooled buffers
+	private static final int PACKETS_PER_STREAM = 8;
+
+	public static void run(Harness harness, final int payloadSize) throws Exception {
+		final byte[] payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		final NullOutputStream out = new NullOutputStream();
+		final FrameEncoder encoder = new FrameEncoder();
+		String size = "[" + payloadSize / 1024 + "KB]";
+
+		harness.run("encode.legacyConcat" + size, payloadSize, new Harness.Benchmark() {
+			public void run() throws IOException {
+				out.write(LegacyFraming.encode(Protocol.HEADER_IMAGE, payload));
+			}
+		});
+		harness.run("encode.frameEncoder" + size, payloadSize, new Harness.Benchmark() {
+			public void run() throws IOException {
+				encoder.writeFrame(out, Protocol.HEADER_IMAGE, payload, 0, payload.length);
+			}
+		});
+		Harness.sink += out.getCount();
+
+		// the same packets in both formats, read back from memory
+		ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+		ByteArrayOutputStream current = new ByteArrayOutputStream();
+		for (int i = 0; i < PACKETS_PER_STREAM; i++) {
+			legacy.write(LegacyFraming.encode(Protocol.HEADER_IMAGE, payload));
+			encoder.writeFrame(current, Protocol.HEADER_IMAGE, payload, 0, payload.length);
+		}
+		final ByteArrayInputStream legacyIn = new ByteArrayInputStream(legacy.toByteArray());
+		final ByteArrayInputStream currentIn = new ByteArrayInputStream(current.toByteArray());
+		final FrameBufferPool pool = new FrameBufferPool(4);
+		final FrameReader reader = new FrameReader(currentIn, pool);
+
+		harness.run("decode.legacyByteAtATime" + size, (long) payloadSize * PACKETS_PER_STREAM,
+				new Harness.Benchmark() {
+					public void run() throws IOException {
+						legacyIn.reset();
+						for (int i = 0; i < PACKETS_PER_STREAM; i++) {
+							Harness.sink += LegacyFraming.readByteAtATime(legacyIn).length;
+						}
+					}
+				});
+		harness.run("decode.frameReaderPooled" + size, (long) payloadSize * PACKETS_PER_STREAM,
+				new Harness.Benchmark() {
+					public void run() throws IOException {
+						currentIn.reset();
+						for (int i = 0; i < PACKETS_PER_STREAM; i++) {
+							FrameBuffer frame = reader.readFrame();
+							Harness.sink += frame.getLength();
+							frame.release();
+						}
+					}
+				});
+
+		// the same packets sent as chunks, the way the writer thread sends images
+		ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+		FrameBuffer packet = FrameBuffer.wrap(Protocol.HEADER_IMAGE, payload);
+		for (int i = 0; i < PACKETS_PER_STREAM; i++) {
+			for (int offset = 0; offset < payload.length; offset += Protocol.MAX_CHUNK_LENGTH) {
+				encoder.writeChunk(chunked, packet, offset, Math.min(Protocol.MAX_CHUNK_LENGTH, payload.length - offset));
+			}
+		}
+		final ByteArrayInputStream chunkedIn = new ByteArrayInputStream(chunked.toByteArray());
+		final FrameReader chunkReader = new FrameReader(chunkedIn, pool);
+		harness.run("decode.frameReaderChunked" + size, (long) payloadSize * PACKETS_PER_STREAM,
+				new Harness.Benchmark() {
+					public void run() throws IOException {
+						chunkedIn.reset();
+						for (int i = 0; i < PACKETS_PER_STREAM; i++) {
+							FrameBuffer frame = chunkReader.readFrame();
+							Harness.sink += frame.getLength();
+							frame.release();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Counts and discards everything written to it.
+	 */
+	static class NullOutputStream extends OutputStream {
+		private long mCount;
+
+		@Override
+		public void write(int b) {
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			mCount += len;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+	}
+}
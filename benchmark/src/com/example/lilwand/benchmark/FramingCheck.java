@@ -0,0 +1,117 @@
+package com.example.lilwand.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.example.lilwand.FrameBuffer;
+import com.example.lilwand.FrameBufferPool;
+import com.example.lilwand.FrameEncoder;
+import com.example.lilwand.Protocol;
+
+/**
+ * Checks byte for byte that FrameEncoder, which frames a packet around the caller's buffer as it is
+ * written, puts the same bytes on the wire as building the packet by copying, the way
+ * LegacyFraming and the old MainActivity.sendMessageWithHeader did. The legacy packet
+ * [type][int length][payload][EOT] must appear unchanged in the current one, with only the fields
+ * added since (sync word, version, header check and payload CRC) in between. Run it the same way
+ * as BenchmarkMain:
+ *
+ * <pre>
+ * java -cp benchmark/bin com.example.lilwand.benchmark.FramingCheck
+ * </pre>
+ *
+ * Exits with status 1 if any packet differs.
+ */
+public class FramingCheck {
+	private static final int[] PAYLOAD_SIZES = { 0, 1, 17, 1024, Protocol.MAX_CHUNK_LENGTH, 40 * 1024 };
+	private static final byte[] TYPES = { Protocol.HEADER_IMAGE, Protocol.HEADER_CONTROLLER_CMD,
+			Protocol.HEADER_IMAGE_RECEIVED, Protocol.HEADER_CODEC };
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(42);
+		FrameEncoder encoder = new FrameEncoder();
+		FrameBufferPool pool = new FrameBufferPool(4);
+		int failures = 0;
+		int checked = 0;
+
+		for (byte type : TYPES) {
+			for (int size : PAYLOAD_SIZES) {
+				byte[] payload = new byte[size];
+				random.nextBytes(payload);
+				byte[] expected = expectedPacket(type, payload);
+
+				// straight from the caller's array
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				encoder.writeFrame(out, type, payload, 0, size);
+				failures += compare("writeFrame(array) type " + type + " size " + size, expected, out.toByteArray());
+
+				// from a pooled buffer with stale bytes past the payload, which must not be written
+				FrameBuffer frame = pool.acquire(size + 64);
+				Arrays.fill(frame.getData(), (byte) 0x55);
+				System.arraycopy(payload, 0, frame.getData(), 0, size);
+				frame.setType(type);
+				frame.setLength(size);
+				out.reset();
+				encoder.writeFrame(out, frame);
+				frame.release();
+				failures += compare("writeFrame(buffer) type " + type + " size " + size, expected, out.toByteArray());
+
+				// the legacy packet survives unchanged between the added fields
+				failures += compare("legacy layout type " + type + " size " + size, LegacyFraming.encode(type, payload),
+						stripAddedFields(expected));
+				checked += 3;
+			}
+		}
+
+		System.out.println((checked - failures) + " of " + checked + " packets match");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	// the current packet, built by copying the legacy one into place around the added fields
+	private static byte[] expectedPacket(byte type, byte[] payload) {
+		byte[] legacy = LegacyFraming.encode(type, payload);
+		byte[] packet = new byte[FrameEncoder.getPacketLength(payload.length)];
+		packet[0] = Protocol.SYNC_0;
+		packet[1] = Protocol.SYNC_1;
+		packet[2] = Protocol.VERSION;
+		System.arraycopy(legacy, 0, packet, 3, 5); // type and length
+		CRC32 crc = new CRC32();
+		crc.update(packet, 2, 6);
+		packet[8] = (byte) crc.getValue();
+		System.arraycopy(legacy, 5, packet, Protocol.PACKET_HEADER_LENGTH, payload.length);
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		byte[] check = LegacyFraming.intToByteArray((int) crc.getValue());
+		System.arraycopy(check, 0, packet, Protocol.PACKET_HEADER_LENGTH + payload.length, 4);
+		packet[packet.length - 1] = legacy[legacy.length - 1]; // EOT
+		return packet;
+	}
+
+	// the inverse of expectedPacket: drop the sync word, version, header check and payload CRC
+	private static byte[] stripAddedFields(byte[] packet) {
+		int length = packet.length - Protocol.PACKET_HEADER_LENGTH - Protocol.PACKET_FOOTER_LENGTH;
+		byte[] legacy = new byte[5 + length + 1];
+		System.arraycopy(packet, 3, legacy, 0, 5);
+		System.arraycopy(packet, Protocol.PACKET_HEADER_LENGTH, legacy, 5, length);
+		legacy[legacy.length - 1] = packet[packet.length - 1];
+		return legacy;
+	}
+
+	private static int compare(String name, byte[] expected, byte[] actual) {
+		if (Arrays.equals(expected, actual)) {
+			return 0;
+		}
+		int at = 0;
+		while (at < Math.min(expected.length, actual.length) && expected[at] == actual[at]) {
+			at++;
+		}
+		System.out.println("MISMATCH " + name + ": " + expected.length + " bytes expected, " + actual.length
+				+ " written, first difference at byte " + at);
+		return 1;
+	}
+}
@@ -0,0 +1,88 @@
+package com.example.lilwand.benchmark;
+
+import java.util.Locale;
+
+/**
+ * A small benchmark runner. Each benchmark is warmed up for a number of fixed-length iterations,
+ * then timed for more iterations, and the mean and standard deviation of the time per operation
+ * are printed together with the throughput.
+ */
+public class Harness {
+	/**
+	 * One operation of a benchmark.
+	 */
+	public interface Benchmark {
+		void run() throws Exception;
+	}
+
+	// Results are folded into this so the JIT can't discard the work being measured
+	public static volatile long sink;
+
+	private static final int BATCH = 16; // operations between clock reads
+
+	private final int mWarmupIterations;
+	private final int mIterations;
+	private final long mIterationNanos;
+	private final String mFilter;
+
+	public Harness(int warmupIterations, int iterations, long iterationMillis, String filter) {
+		mWarmupIterations = warmupIterations;
+		mIterations = iterations;
+		mIterationNanos = iterationMillis * 1000000L;
+		mFilter = filter;
+	}
+
+	public static void printHeader() {
+		System.out.println(String.format(Locale.US, "%-44s %12s %10s %10s", "benchmark", "ns/op", "+-", "MB/s"));
+	}
+
+	/**
+	 * Run a benchmark unless it is excluded by the filter.
+	 *
+	 * @param name
+	 *            The benchmark name, printed and matched against the filter
+	 * @param bytesPerOp
+	 *            The payload bytes handled per operation, used for the throughput column
+	 */
+	public void run(String name, long bytesPerOp, Benchmark benchmark) throws Exception {
+		if (mFilter != null && !name.contains(mFilter)) {
+			return;
+		}
+
+		for (int i = 0; i < mWarmupIterations; i++) {
+			iteration(benchmark);
+		}
+		double[] results = new double[mIterations];
+		double sum = 0;
+		for (int i = 0; i < mIterations; i++) {
+			results[i] = iteration(benchmark);
+			sum += results[i];
+		}
+		double mean = sum / mIterations;
+		double variance = 0;
+		for (double result : results) {
+			variance += (result - mean) * (result - mean);
+		}
+		double stdev = mIterations > 1 ? Math.sqrt(variance / (mIterations - 1)) : 0;
+		double throughput = bytesPerOp * 1000.0 / mean; // bytes/ns * 1e9 / 1e6
+
+		System.out.println(String.format(Locale.US, "%-44s %12.1f %10.1f %10.1f", name, mean, stdev, throughput));
+	}
+
+	/**
+	 * Run operations for one iteration and return the mean time per operation in nanoseconds.
+	 */
+	private double iteration(Benchmark benchmark) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < BATCH; i++) {
+				benchmark.run();
+			}
+			ops += BATCH;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < mIterationNanos);
+		return (double) elapsed / ops;
+	}
+}
@@ -0,0 +1,59 @@
+package com.example.lilwand.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The framing code as it was before FrameEncoder and FrameReader, kept as a baseline. Packets are
+ * laid out as [type][int length][payload][EOT].
+ */
+public class LegacyFraming {
+	static final byte EOT = 0x04;
+
+	/**
+	 * Build a packet the way MainActivity.sendMessageWithHeader used to.
+	 */
+	public static byte[] encode(byte headerType, byte[] data) {
+		byte[] header = concatByteArray(new byte[] { headerType }, intToByteArray(data.length));
+		byte[] message = concatByteArray(header, data);
+		byte[] footer = { EOT };
+		return concatByteArray(message, footer);
+	}
+
+	/**
+	 * Read a packet the way ConnectedThread.run used to, one payload byte at a time.
+	 *
+	 * @return the payload
+	 */
+	public static byte[] readByteAtATime(InputStream in) throws IOException {
+		in.read(); // message type
+		byte[] buffer = new byte[4];
+		in.read(buffer);
+		int messageLength = ByteBuffer.wrap(buffer).getInt();
+
+		buffer = new byte[messageLength];
+		int count = 0;
+		while (count < messageLength) {
+			buffer[count] = (byte) in.read();
+			count++;
+		}
+		if (in.read() != EOT) {
+			throw new IOException("FOOTER BYTE not received");
+		}
+		return buffer;
+	}
+
+	static byte[] concatByteArray(byte[] A, byte[] B) {
+		int aLen = A.length;
+		int bLen = B.length;
+		byte[] C = new byte[aLen + bLen];
+		System.arraycopy(A, 0, C, 0, aLen);
+		System.arraycopy(B, 0, C, aLen, bLen);
+		return C;
+	}
+
+	static byte[] intToByteArray(int input) {
+		return ByteBuffer.allocate(4).putInt(input).array();
+	}
+}
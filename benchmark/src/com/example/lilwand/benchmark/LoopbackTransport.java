@@ -0,0 +1,216 @@
+package com.example.lilwand.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.example.lilwand.Transport;
+
+/**
+ * An in-memory Transport. Each direction is a bounded ring buffer, so a slow reader pushes back on
+ * the writer the way a real link does. Used to drive the framing on a plain JVM.
+ */
+public class LoopbackTransport implements Transport {
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final Pipe mIn;
+	private final Pipe mOut;
+	private final String mRemoteName;
+
+	private LoopbackTransport(Pipe in, Pipe out, String remoteName) {
+		mIn = in;
+		mOut = out;
+		mRemoteName = remoteName;
+	}
+
+	/**
+	 * Create two connected ends. Bytes written to one end are read from the other.
+	 *
+	 * @param capacity
+	 *            The number of bytes each direction can buffer
+	 */
+	public static Transport[] createPair(int capacity) {
+		Pipe a = new Pipe(capacity);
+		Pipe b = new Pipe(capacity);
+		return new Transport[] { new LoopbackTransport(a, b, "loopback-b"), new LoopbackTransport(b, a, "loopback-a") };
+	}
+
+	public InputStream getInputStream() {
+		return mIn.mInputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return mOut.mOutputStream;
+	}
+
+	public String getRemoteName() {
+		return mRemoteName;
+	}
+
+	public void close() {
+		mIn.close();
+		mOut.close();
+	}
+
+	/**
+	 * Accepts connections made through its {@link #connector()}.
+	 */
+	public static class Server implements Transport.Server {
+		private final LinkedBlockingQueue<Transport> mPending = new LinkedBlockingQueue<Transport>();
+		private final int mCapacity;
+		private volatile boolean mClosed;
+
+		public Server(int capacity) {
+			mCapacity = capacity;
+		}
+
+		public Transport accept() throws IOException {
+			Transport transport;
+			try {
+				transport = mPending.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (mClosed) {
+				throw new IOException("server closed");
+			}
+			return transport;
+		}
+
+		public void close() {
+			mClosed = true;
+			// wake up a blocked accept()
+			mPending.offer(new LoopbackTransport(new Pipe(0), new Pipe(0), ""));
+		}
+
+		/**
+		 * Return a Connector that connects to this server.
+		 */
+		public Transport.Connector connector() {
+			return new Transport.Connector() {
+				public Transport connect() throws IOException {
+					if (mClosed) {
+						throw new IOException("connection refused");
+					}
+					Transport[] pair = createPair(mCapacity);
+					mPending.offer(pair[1]);
+					return pair[0];
+				}
+
+				public void cancel() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * A bounded byte ring buffer with blocking stream ends.
+	 */
+	private static class Pipe {
+		private final byte[] mBuffer;
+		private int mReadPos;
+		private int mCount;
+		private boolean mClosed;
+
+		final InputStream mInputStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (Pipe.this) {
+					return mCount;
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream mOutputStream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int capacity) {
+			mBuffer = new byte[capacity];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (mCount == 0 && !mClosed) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (mCount == 0) {
+				return -1;
+			}
+			int count = Math.min(len, mCount);
+			int first = Math.min(count, mBuffer.length - mReadPos);
+			System.arraycopy(mBuffer, mReadPos, b, off, first);
+			System.arraycopy(mBuffer, 0, b, off + first, count - first);
+			mReadPos = (mReadPos + count) % mBuffer.length;
+			mCount -= count;
+			notifyAll();
+			return count;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				try {
+					while (mCount == mBuffer.length && !mClosed) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				if (mClosed) {
+					throw new IOException("pipe closed");
+				}
+				int count = Math.min(len, mBuffer.length - mCount);
+				int writePos = (mReadPos + mCount) % mBuffer.length;
+				int first = Math.min(count, mBuffer.length - writePos);
+				System.arraycopy(b, off, mBuffer, writePos, first);
+				System.arraycopy(b, off + first, mBuffer, 0, count - first);
+				mCount += count;
+				off += count;
+				len -= count;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			mClosed = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.example.lilwand.benchmark;
+
+import com.example.lilwand.FrameBuffer;
+import com.example.lilwand.FrameBufferPool;
+
+/**
+ * Getting a buffer for a received packet from FrameBufferPool versus allocating a new array.
+ */
+public class PoolBenchmarks {
+	// Keeps allocated arrays reachable so the JIT can't remove the allocation
+	static byte[] sLastArray;
+
+	public static void run(Harness harness, final int payloadSize) throws Exception {
+		final FrameBufferPool pool = new FrameBufferPool(8);
+		String size = "[" + payloadSize / 1024 + "KB]";
+
+		harness.run("buffer.newArray" + size, payloadSize, new Harness.Benchmark() {
+			public void run() {
+				sLastArray = new byte[payloadSize];
+				Harness.sink += sLastArray.length;
+			}
+		});
+		harness.run("buffer.poolAcquireRelease" + size, payloadSize, new Harness.Benchmark() {
+			public void run() {
+				FrameBuffer frame = pool.acquire(payloadSize);
+				Harness.sink += frame.getCapacity();
+				frame.release();
+			}
+		});
+		Harness.sink += pool.getMissCount();
+	}
+}
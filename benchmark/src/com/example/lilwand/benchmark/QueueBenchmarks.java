@@ -0,0 +1,84 @@
+package com.example.lilwand.benchmark;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import com.example.lilwand.FrameBuffer;
+import com.example.lilwand.FrameBufferPool;
+import com.example.lilwand.SendQueue;
+
+/**
+ * Handing packets from a producer thread to a consumer thread, as the camera thread does with the
+ * writer thread, through SendQueue and through a plain LinkedBlockingQueue.
+ */
+public class QueueBenchmarks {
+	// packets handed over per operation
+	private static final int HANDOFFS = 256;
+
+	public static void run(Harness harness, final int payloadSize) throws Exception {
+		final FrameBufferPool pool = new FrameBufferPool(16);
+		final Semaphore done = new Semaphore(0);
+		String size = "[" + payloadSize / 1024 + "KB]";
+
+		final SendQueue sendQueue = new SendQueue(8, SendQueue.POLICY_BLOCK);
+		Thread sendQueueConsumer = new Thread("SendQueueConsumer") {
+			public void run() {
+				try {
+					int count = 0;
+					FrameBuffer frame;
+					while ((frame = sendQueue.take()) != null) {
+						frame.release();
+						if (++count % HANDOFFS == 0) {
+							done.release();
+						}
+					}
+				} catch (InterruptedException e) {
+					// finished
+				}
+			}
+		};
+		sendQueueConsumer.start();
+		harness.run("handoff.sendQueue" + size + "x" + HANDOFFS, (long) payloadSize * HANDOFFS,
+				new Harness.Benchmark() {
+					public void run() throws InterruptedException {
+						for (int i = 0; i < HANDOFFS; i++) {
+							FrameBuffer frame = pool.acquire(payloadSize);
+							frame.setType(0);
+							sendQueue.offer(frame);
+						}
+						done.acquire();
+					}
+				});
+		sendQueue.close();
+		sendQueueConsumer.join();
+
+		final LinkedBlockingQueue<FrameBuffer> blockingQueue = new LinkedBlockingQueue<FrameBuffer>(8);
+		Thread blockingQueueConsumer = new Thread("BlockingQueueConsumer") {
+			public void run() {
+				try {
+					int count = 0;
+					while (true) {
+						blockingQueue.take().release();
+						if (++count % HANDOFFS == 0) {
+							done.release();
+						}
+					}
+				} catch (InterruptedException e) {
+					// finished
+				}
+			}
+		};
+		blockingQueueConsumer.start();
+		harness.run("handoff.linkedBlockingQueue" + size + "x" + HANDOFFS, (long) payloadSize * HANDOFFS,
+				new Harness.Benchmark() {
+					public void run() throws InterruptedException {
+						for (int i = 0; i < HANDOFFS; i++) {
+							blockingQueue.put(pool.acquire(payloadSize));
+						}
+						done.acquire();
+					}
+				});
+		blockingQueueConsumer.interrupt();
+		blockingQueueConsumer.join();
+	}
+}
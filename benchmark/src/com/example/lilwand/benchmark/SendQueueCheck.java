@@ -0,0 +1,130 @@
+package com.example.lilwand.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.example.lilwand.FrameBuffer;
+import com.example.lilwand.Protocol;
+import com.example.lilwand.SendQueue;
+
+/**
+ * Checks that a SendQueue dropping the oldest image drops whole images of every kind, never part
+ * of an image's stripes. Run it the same way as BenchmarkMain:
+ *
+ * <pre>
+ * java -cp benchmark/bin com.example.lilwand.benchmark.SendQueueCheck
+ * </pre>
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class SendQueueCheck {
+	private static final int STRIPE_COUNT = 3;
+
+	public static void main(String[] args) throws InterruptedException {
+		int failures = 0;
+
+		// deltas and stripes make room like whole images do, and the codec change stays
+		SendQueue queue = new SendQueue(4, SendQueue.POLICY_DROP_OLDEST_IMAGE);
+		queue.offer(FrameBuffer.wrap(Protocol.HEADER_CODEC, new byte[] { 1 }));
+		queue.offer(image(Protocol.HEADER_IMAGE_DELTA, 1));
+		queue.offer(stripe(2, 0));
+		queue.offer(stripe(2, 1));
+		queue.offer(stripe(2, 2)); // drops delta 1
+		queue.offer(image(Protocol.HEADER_IMAGE, 3)); // drops all of image 2
+		failures += check("every image type", queue, "codec image 3", 4);
+
+		// stripes of an image the writer has started on are kept
+		queue = new SendQueue(3, SendQueue.POLICY_DROP_OLDEST_IMAGE);
+		queue.offer(stripe(1, 0));
+		queue.offer(stripe(1, 1));
+		queue.offer(stripe(1, 2));
+		queue.poll().release();
+		queue.offer(image(Protocol.HEADER_IMAGE_DELTA, 2));
+		queue.offer(image(Protocol.HEADER_IMAGE_DELTA, 3)); // drops delta 2
+		failures += check("stripes being written", queue, "stripe 1 stripe 1 delta 3", 1);
+
+		// the stripes of a dropped image that are still to come are refused
+		queue = new SendQueue(2, SendQueue.POLICY_DROP_OLDEST_IMAGE);
+		queue.offer(stripe(1, 0));
+		queue.offer(stripe(1, 1));
+		queue.offer(image(Protocol.HEADER_IMAGE_DELTA, 2)); // drops both stripes of image 1
+		boolean queued = queue.offer(stripe(1, 2));
+		failures += check("rest of a dropped image", queue, "delta 2", 3);
+		if (queued) {
+			System.out.println("rest of a dropped image: FAILED the last stripe was queued");
+			failures++;
+		}
+
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static FrameBuffer image(int type, int image) {
+		byte[] payload = new byte[Protocol.IMAGE_HEADER_LENGTH];
+		putInt(payload, image);
+		return FrameBuffer.wrap(type, payload);
+	}
+
+	private static FrameBuffer stripe(int image, int index) {
+		byte[] payload = new byte[Protocol.STRIPE_HEADER_LENGTH];
+		putInt(payload, image);
+		payload[4] = (byte) index;
+		payload[5] = STRIPE_COUNT;
+		return FrameBuffer.wrap(Protocol.HEADER_IMAGE_STRIPE, payload);
+	}
+
+	private static void putInt(byte[] buffer, int value) {
+		buffer[0] = (byte) (value >>> 24);
+		buffer[1] = (byte) (value >>> 16);
+		buffer[2] = (byte) (value >>> 8);
+		buffer[3] = (byte) value;
+	}
+
+	/**
+	 * Empty the queue and compare what was left in it and how much was dropped with what should.
+	 */
+	private static int check(String name, SendQueue queue, String expected, int dropped) {
+		long droppedCount = queue.getDroppedCount();
+		List<String> left = new ArrayList<String>();
+		FrameBuffer frame;
+		while ((frame = queue.poll()) != null) {
+			left.add(describe(frame));
+			frame.release();
+		}
+		StringBuilder actual = new StringBuilder();
+		for (String packet : left) {
+			actual.append(actual.length() > 0 ? " " : "").append(packet);
+		}
+
+		StringBuilder problems = new StringBuilder();
+		if (!actual.toString().equals(expected)) {
+			problems.append(" left \"").append(actual).append("\", expected \"").append(expected).append("\";");
+		}
+		if (droppedCount != dropped) {
+			problems.append(" dropped ").append(droppedCount).append(" packets, expected ").append(dropped)
+					.append(";");
+		}
+		if (problems.length() == 0) {
+			System.out.println(name + ": ok");
+			return 0;
+		}
+		System.out.println(name + ": FAILED" + problems);
+		return 1;
+	}
+
+	private static String describe(FrameBuffer frame) {
+		switch (frame.getType()) {
+		case Protocol.HEADER_CODEC:
+			return "codec";
+		case Protocol.HEADER_IMAGE:
+			return "image " + Protocol.getImageNumber(frame);
+		case Protocol.HEADER_IMAGE_DELTA:
+			return "delta " + Protocol.getImageNumber(frame);
+		case Protocol.HEADER_IMAGE_STRIPE:
+			return "stripe " + Protocol.getImageNumber(frame);
+		default:
+			return "type " + frame.getType();
+		}
+	}
+}
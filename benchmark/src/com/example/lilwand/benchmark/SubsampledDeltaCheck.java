@@ -0,0 +1,104 @@
+package com.example.lilwand.benchmark;
+
+import com.example.lilwand.Subsampling;
+
+/**
+ * Checks that deltas still apply after a keyframe decoded subsampled for a small surface. For each
+ * stream size a keyframe is decoded at the sample size JpegCodec picks for the surface, rounded
+ * either way the decoder may round, then a delta covering the whole image in full size tiles is
+ * applied the way FrameCompositor applies it: the delta must be accepted and its tiles must cover
+ * every pixel of the keyframe exactly once. Run it the same way as BenchmarkMain:
+ *
+ * <pre>
+ * java -cp benchmark/bin com.example.lilwand.benchmark.SubsampledDeltaCheck
+ * </pre>
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class SubsampledDeltaCheck {
+	private static final int TILE_SIZE = 64; // as MainActivity.DELTA_TILE_SIZE
+
+	// stream width, stream height, surface width, surface height, expected sample size
+	private static final int[][] CASES = { { 640, 480, 640, 480, 1 }, { 1280, 720, 320, 240, 2 },
+			{ 1920, 1080, 480, 270, 4 }, { 1000, 750, 240, 180, 4 }, { 176, 144, 1, 1, 128 } };
+
+	public static void main(String[] args) {
+		int failures = 0;
+		for (int[] c : CASES) {
+			int sampleSize = Subsampling.getSampleSize(c[0], c[1], c[2], c[3]);
+			String name = c[0] + "x" + c[1] + " on " + c[2] + "x" + c[3];
+			StringBuilder problems = new StringBuilder();
+			if (sampleSize != c[4]) {
+				problems.append(" sample size ").append(sampleSize).append(", expected ").append(c[4]).append(";");
+			}
+			// decoders round the subsampled size up or down
+			checkDelta(c[0], c[1], sampleSize, Subsampling.scale(c[0], sampleSize),
+					Subsampling.scale(c[1], sampleSize), problems);
+			checkDelta(c[0], c[1], sampleSize, c[0] / sampleSize, c[1] / sampleSize, problems);
+			failures += report(name, problems);
+		}
+
+		// a keyframe of another stream size is still refused
+		StringBuilder problems = new StringBuilder();
+		if (Subsampling.findSampleSize(1280, 720, 640, 480) != -1) {
+			problems.append(" a 640x480 keyframe took a 1280x720 delta;");
+		}
+		if (Subsampling.findSampleSize(640, 480, 1280, 720) != -1) {
+			problems.append(" a 1280x720 keyframe took a 640x480 delta;");
+		}
+		failures += report("keyframe of another size", problems);
+
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	// apply a delta of full size tiles to a keyframe of frameWidth by frameHeight
+	private static void checkDelta(int width, int height, int sampleSize, int frameWidth, int frameHeight,
+			StringBuilder problems) {
+		int found = Subsampling.findSampleSize(width, height, frameWidth, frameHeight);
+		if (found != sampleSize) {
+			problems.append(" a ").append(frameWidth).append("x").append(frameHeight).append(" keyframe ");
+			problems.append(found < 0 ? "refused the delta;" : "was taken for sample size " + found + ";");
+			return;
+		}
+
+		int[] covered = new int[frameWidth * frameHeight];
+		for (int top = 0; top < height; top += TILE_SIZE) {
+			for (int left = 0; left < width; left += TILE_SIZE) {
+				int right = Math.min(width, left + TILE_SIZE);
+				int bottom = Math.min(height, top + TILE_SIZE);
+				// the canvas clips anything past the frame
+				int x1 = Math.min(frameWidth, Subsampling.scale(right, found));
+				int y1 = Math.min(frameHeight, Subsampling.scale(bottom, found));
+				for (int y = Subsampling.scale(top, found); y < y1; y++) {
+					for (int x = Subsampling.scale(left, found); x < x1; x++) {
+						covered[y * frameWidth + x]++;
+					}
+				}
+			}
+		}
+		int gaps = 0;
+		int overlaps = 0;
+		for (int count : covered) {
+			if (count == 0) {
+				gaps++;
+			} else if (count > 1) {
+				overlaps++;
+			}
+		}
+		if (gaps > 0 || overlaps > 0) {
+			problems.append(" on a ").append(frameWidth).append("x").append(frameHeight).append(" keyframe ")
+					.append(gaps).append(" pixels were missed and ").append(overlaps).append(" drawn twice;");
+		}
+	}
+
+	private static int report(String name, StringBuilder problems) {
+		if (problems.length() == 0) {
+			System.out.println(name + ": ok");
+			return 0;
+		}
+		System.out.println(name + ": FAILED" + problems);
+		return 1;
+	}
+}
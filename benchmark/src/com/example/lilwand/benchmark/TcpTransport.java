@@ -0,0 +1,95 @@
+package com.example.lilwand.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.example.lilwand.Transport;
+
+/**
+ * A Transport over a TCP socket, to measure the framing over a real socket. Nagle's algorithm is
+ * turned off because the writer thread already batches small packets before flushing.
+ */
+public class TcpTransport implements Transport {
+	public static final int DEFAULT_PORT = 7788;
+	private static final int CONNECT_TIMEOUT = 10000; // ms
+
+	private final Socket mSocket;
+
+	public TcpTransport(Socket socket) throws IOException {
+		mSocket = socket;
+		mSocket.setTcpNoDelay(true);
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	public String getRemoteName() {
+		return mSocket.getInetAddress().getHostAddress();
+	}
+
+	public void close() throws IOException {
+		mSocket.close();
+	}
+
+	/**
+	 * Listens for incoming TCP connections.
+	 */
+	public static class Server implements Transport.Server {
+		private final ServerSocket mServerSocket;
+
+		public Server(int port) throws IOException {
+			mServerSocket = new ServerSocket(port);
+		}
+
+		/**
+		 * Return the port the server is listening on, useful when it was opened on port 0.
+		 */
+		public int getLocalPort() {
+			return mServerSocket.getLocalPort();
+		}
+
+		public Transport accept() throws IOException {
+			return new TcpTransport(mServerSocket.accept());
+		}
+
+		public void close() throws IOException {
+			mServerSocket.close();
+		}
+	}
+
+	/**
+	 * Connects to a TCP server.
+	 */
+	public static class Connector implements Transport.Connector {
+		private final String mHost;
+		private final int mPort;
+		private final Socket mSocket = new Socket();
+
+		public Connector(String host, int port) {
+			mHost = host;
+			mPort = port;
+		}
+
+		public Transport connect() throws IOException {
+			mSocket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+			return new TcpTransport(mSocket);
+		}
+
+		public void cancel() {
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				// nothing left to clean up
+			}
+		}
+	}
+}
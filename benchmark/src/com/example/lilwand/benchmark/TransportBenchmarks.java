@@ -0,0 +1,106 @@
+package com.example.lilwand.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+
+import com.example.lilwand.FrameBuffer;
+import com.example.lilwand.FrameBufferPool;
+import com.example.lilwand.FrameEncoder;
+import com.example.lilwand.FrameReader;
+import com.example.lilwand.Transport;
+
+/**
+ * Streaming packets end to end over a Transport: a writer thread frames them with FrameEncoder
+ * through a buffer the size of BluetoothService's, and FrameReader reads them at the other end.
+ * Runs over LoopbackTransport and over TcpTransport on localhost, each connected through its
+ * Server and Connector the way BluetoothService connects.
+ */
+public class TransportBenchmarks {
+	// packets streamed per operation
+	private static final int PACKETS = 64;
+	private static final int WRITE_BUFFER_SIZE = 8 * 1024; // as BluetoothService
+
+	public static void run(Harness harness, int payloadSize) throws Exception {
+		String size = "[" + payloadSize / 1024 + "KB]";
+
+		LoopbackTransport.Server loopbackServer = new LoopbackTransport.Server(LoopbackTransport.DEFAULT_CAPACITY);
+		Transport[] loopback = connect(loopbackServer, loopbackServer.connector());
+		stream(harness, "transport.loopback" + size + "x" + PACKETS, loopback, payloadSize);
+		loopbackServer.close();
+
+		TcpTransport.Server tcpServer = new TcpTransport.Server(0);
+		Transport[] tcp = connect(tcpServer, new TcpTransport.Connector("127.0.0.1", tcpServer.getLocalPort()));
+		stream(harness, "transport.tcp" + size + "x" + PACKETS, tcp, payloadSize);
+		tcpServer.close();
+	}
+
+	/**
+	 * Connect to a server and return the connecting end and the accepted end.
+	 */
+	private static Transport[] connect(final Transport.Server server, Transport.Connector connector)
+			throws IOException, InterruptedException {
+		final Transport[] accepted = new Transport[1];
+		Thread acceptThread = new Thread("AcceptThread") {
+			public void run() {
+				try {
+					accepted[0] = server.accept();
+				} catch (IOException e) {
+					// reported below
+				}
+			}
+		};
+		acceptThread.start();
+		Transport connected = connector.connect();
+		acceptThread.join();
+		if (accepted[0] == null) {
+			connected.close();
+			throw new IOException("connection was not accepted");
+		}
+		return new Transport[] { connected, accepted[0] };
+	}
+
+	private static void stream(Harness harness, String name, final Transport[] ends, final int payloadSize)
+			throws Exception {
+		final byte[] payload = new byte[payloadSize];
+		final Semaphore go = new Semaphore(0);
+		final OutputStream out = new BufferedOutputStream(ends[0].getOutputStream(), WRITE_BUFFER_SIZE);
+		Thread writer = new Thread("WriterThread") {
+			public void run() {
+				FrameEncoder encoder = new FrameEncoder();
+				try {
+					while (true) {
+						go.acquire();
+						for (int i = 0; i < PACKETS; i++) {
+							encoder.writeFrame(out, 0, payload, 0, payloadSize);
+						}
+						out.flush();
+					}
+				} catch (InterruptedException e) {
+					// finished
+				} catch (IOException e) {
+					// the transport was closed
+				}
+			}
+		};
+		writer.start();
+
+		final FrameReader reader = new FrameReader(ends[1].getInputStream(), new FrameBufferPool(4));
+		harness.run(name, (long) payloadSize * PACKETS, new Harness.Benchmark() {
+			public void run() throws IOException {
+				go.release();
+				for (int i = 0; i < PACKETS; i++) {
+					FrameBuffer frame = reader.readFrame();
+					Harness.sink += frame.getLength();
+					frame.release();
+				}
+			}
+		});
+
+		writer.interrupt();
+		ends[0].close();
+		ends[1].close();
+		writer.join();
+	}
+}
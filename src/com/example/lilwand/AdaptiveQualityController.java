@@ -0,0 +1,188 @@
+package com.example.lilwand;
+
+/**
+ * Picks the JPEG quality and downscaling the camera encodes with, from how the link is keeping up.
+ * The camera reports the size of every image it sends and the round trip of every ack.
+ *
+ * The controller aims at a target round trip. When the averaged round trip is above the target it
+ * cuts the quality in proportion to the overshoot; once the quality is at its minimum it halves the
+ * resolution instead. When the round trip is comfortably below the target it raises the quality
+ * step by step, and goes back up in resolution only once the round trip of the four times larger
+ * frames would still be within the target.
+ *
+ * The round trip of an image includes the time it waits on the link behind the other images in
+ * flight, so on a busy link it is several times the time one image takes to send. The round trip
+ * at the larger resolution is predicted by scaling the measured one, wait included, by the growth
+ * in size. Judging by the time of one image alone moves the controller up to a resolution where
+ * even the minimum quality sits inside the hysteresis band, and it stays there.
+ *
+ * Only acks for images encoded since the last change count towards the next decision: the images
+ * still in flight from before it say nothing about the new settings, and on a slow link they would
+ * otherwise cut the quality again and again for the same overshoot. A round trip above the band
+ * is acted on as soon as it is measured, one under it after acksPerDecision acks.
+ */
+public class AdaptiveQualityController {
+	private static final double EWMA_WEIGHT = 0.25;
+	private static final int MAX_OUTSTANDING = 32;
+
+	/**
+	 * The tunable parameters of the controller.
+	 */
+	public static class Policy {
+		public long targetLatencyNanos = 150 * 1000000L; // target ack round trip
+		public double hysteresis = 0.25; // no change within this fraction of the target
+		public int minQuality = 10;
+		public int maxQuality = 80;
+		public int initialQuality = 30;
+		public int increaseStep = 5;
+		public double minDecreaseFactor = 0.5; // never cut the quality by more than this at once
+		public int maxScaleDivisor = 4; // 1, 2 or 4
+		public int acksPerDecision = 4; // acks to average over between adjustments
+	}
+
+	private final Policy mPolicy;
+	private int mQuality;
+	private int mScaleDivisor = 1;
+
+	// numbers and sizes of the images in flight, oldest first
+	private final int[] mSentImages = new int[MAX_OUTSTANDING];
+	private final int[] mSentSizes = new int[MAX_OUTSTANDING];
+	private int mSentHead;
+	private int mSentCount;
+
+	private int mLastSent; // number of the newest image sent
+	private boolean mChanged; // the settings changed after image mChangedAfter was sent
+	private int mChangedAfter;
+
+	private double mRtt = -1; // averaged round trip since the last change, ns
+	private double mThroughput = -1; // averaged acked bytes per ns
+	private long mLastAckTime = -1;
+	private int mAcks;
+
+	public AdaptiveQualityController(Policy policy) {
+		mPolicy = policy;
+		mQuality = policy.initialQuality;
+	}
+
+	public synchronized int getQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * Return the factor the preview frame should be downscaled by before encoding.
+	 */
+	public synchronized int getScaleDivisor() {
+		return mScaleDivisor;
+	}
+
+	/**
+	 * Return the averaged throughput of acknowledged images in bytes per second, or -1 if unknown.
+	 */
+	public synchronized double getThroughput() {
+		return mThroughput < 0 ? -1 : mThroughput * 1e9;
+	}
+
+	/**
+	 * Record an image put on the link.
+	 *
+	 * @param image
+	 *            The image number, see Protocol
+	 */
+	public synchronized void onImageSent(int image, int bytes) {
+		mLastSent = image;
+		if (mSentCount == MAX_OUTSTANDING) {
+			mSentHead = (mSentHead + 1) % MAX_OUTSTANDING;
+			mSentCount--;
+		}
+		int tail = (mSentHead + mSentCount) % MAX_OUTSTANDING;
+		mSentImages[tail] = image;
+		mSentSizes[tail] = bytes;
+		mSentCount++;
+	}
+
+	/**
+	 * Record an ack for every image up to and including the given one.
+	 *
+	 * @param image
+	 *            The newest image acknowledged
+	 * @param rttNanos
+	 *            Round trip of that image
+	 * @param nowNanos
+	 *            Time the ack arrived
+	 */
+	public synchronized void onImagesAcked(int image, long rttNanos, long nowNanos) {
+		long bytes = 0;
+		while (mSentCount > 0 && mSentImages[mSentHead] - image <= 0) {
+			bytes += mSentSizes[mSentHead];
+			mSentHead = (mSentHead + 1) % MAX_OUTSTANDING;
+			mSentCount--;
+		}
+		if (mLastAckTime >= 0 && nowNanos > mLastAckTime) {
+			mThroughput = average(mThroughput, (double) bytes / (nowNanos - mLastAckTime));
+		}
+		mLastAckTime = nowNanos;
+		if (mChanged && image - mChangedAfter <= 0) {
+			// encoded with the settings before the last change
+			return;
+		}
+		mRtt = average(mRtt, rttNanos);
+
+		if (++mAcks >= mPolicy.acksPerDecision || mRtt > mPolicy.targetLatencyNanos * (1 + mPolicy.hysteresis)) {
+			mAcks = 0;
+			int quality = mQuality;
+			int divisor = mScaleDivisor;
+			adjust();
+			if (mQuality != quality || mScaleDivisor != divisor) {
+				mChanged = true;
+				mChangedAfter = mLastSent;
+				mRtt = -1;
+			}
+		}
+	}
+
+	/**
+	 * Forget everything measured, e.g. after a reconnect, but keep the current settings.
+	 */
+	public synchronized void reset() {
+		mSentCount = 0;
+		mChanged = false;
+		mRtt = -1;
+		mThroughput = -1;
+		mLastAckTime = -1;
+		mAcks = 0;
+	}
+
+	private void adjust() {
+		double target = mPolicy.targetLatencyNanos;
+		if (mRtt > target * (1 + mPolicy.hysteresis)) {
+			boolean beyondQuality = mQuality * target / mRtt < mPolicy.minQuality;
+			if (mQuality > mPolicy.minQuality && !(beyondQuality && mScaleDivisor < mPolicy.maxScaleDivisor)) {
+				// cut harder the further we are over the target
+				double factor = Math.max(mPolicy.minDecreaseFactor, target / mRtt);
+				mQuality = Math.max(mPolicy.minQuality, (int) (mQuality * factor));
+			} else if (mScaleDivisor < mPolicy.maxScaleDivisor) {
+				// a quarter of the pixels, the quality can come back up. Also taken when the cut needed
+				// goes below the minimum quality, as every cut waits for the images in flight to drain.
+				mScaleDivisor *= 2;
+				mQuality = mPolicy.initialQuality;
+			}
+		} else if (mRtt > target && mQuality == mPolicy.minQuality && mScaleDivisor < mPolicy.maxScaleDivisor) {
+			// the lowest quality can't meet the target at this resolution, and nothing would ever
+			// push the round trip out of the hysteresis band to find that out
+			mScaleDivisor *= 2;
+			mQuality = mPolicy.initialQuality;
+		} else if (mRtt < target * (1 - mPolicy.hysteresis)) {
+			// four times the pixels, at the minimum quality they are less than four times the bytes
+			if (mScaleDivisor > 1 && mQuality >= mPolicy.initialQuality && 4 * mRtt < target) {
+				mScaleDivisor /= 2;
+				mQuality = mPolicy.minQuality;
+			} else {
+				mQuality = Math.min(mPolicy.maxQuality, mQuality + mPolicy.increaseStep);
+			}
+		}
+	}
+
+	private static double average(double average, double sample) {
+		return average < 0 ? sample : average + EWMA_WEIGHT * (sample - average);
+	}
+}
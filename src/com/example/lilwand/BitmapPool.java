@@ -0,0 +1,70 @@
+package com.example.lilwand;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+
+/**
+ * A few mutable bitmaps handed back and forth between the controller's decoder and renderer, so
+ * decoding an image doesn't allocate one. Before API 19 BitmapFactory only decodes into an
+ * inBitmap of exactly the image's size, so bitmaps are matched on size. Stripes of an image come in
+ * more than one size, so a full pool drops the bitmap given back longest ago and sizes that are no
+ * longer arriving age out.
+ *
+ * Bitmaps are never recycled here: a bitmap let go of may still be referenced as the compositor's
+ * keyframe, and the garbage collector frees it once it isn't.
+ */
+public class BitmapPool {
+	private final int mMaxPooled;
+	private final ArrayList<Bitmap> mFree;
+	private long mHits;
+	private long mMisses;
+
+	public BitmapPool(int maxPooled) {
+		mMaxPooled = maxPooled;
+		mFree = new ArrayList<Bitmap>(maxPooled);
+	}
+
+	/**
+	 * Return a mutable ARGB_8888 bitmap of the given size, with undefined contents.
+	 */
+	public synchronized Bitmap acquire(int width, int height) {
+		for (int i = 0; i < mFree.size(); i++) {
+			Bitmap bitmap = mFree.get(i);
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+				mHits++;
+				return mFree.remove(i);
+			}
+		}
+		mMisses++;
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Give a bitmap back once nothing is going to draw it any more.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		if (mFree.size() >= mMaxPooled) {
+			mFree.remove(0);
+		}
+		mFree.add(bitmap);
+	}
+
+	/**
+	 * Drop all pooled bitmaps.
+	 */
+	public synchronized void clear() {
+		mFree.clear();
+	}
+
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+}
@@ -14,16 +14,14 @@
 
 package com.example.lilwand;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
@@ -34,6 +32,8 @@ import android.util.Log;
  * This class does all the work for setting up and managing Bluetooth connections with other
  * devices. It has a thread that listens for incoming connections, a thread for connecting with a
  * device, and a thread for performing data transmissions when connected.
+ * 
+ * Connections are made over RFCOMM, and the threads work on the {@link Transport} it provides.
  */
 public class BluetoothService {
 	// Debugging
@@ -46,13 +46,24 @@ public class BluetoothService {
 	// Unique UUID for this application
 	private static final UUID MY_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
 
+	// Maximum number of free packet buffers kept between frames, enough for a window of striped
+	// images on the way out
+	private static final int MAX_POOLED_FRAMES = 16;
+
+	// Number of packets that can wait for the writer thread, and the buffer used to batch them
+	private static final int SEND_QUEUE_CAPACITY = 8;
+	private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
 	// Member fields
 	private final BluetoothAdapter mAdapter;
 	private final Handler mHandler;
+	private final FrameBufferPool mFramePool;
+	private final LinkStats mLinkStats = new LinkStats();
 	private AcceptThread mAcceptThread;
 	private ConnectThread mConnectThread;
 	private ConnectedThread mConnectedThread;
 	private int mState;
+	private int mSendPolicy = SendQueue.POLICY_DROP_OLDEST_IMAGE;
 	private Context mContext;
 
 	// Constants that indicate the current connection state
@@ -77,6 +88,7 @@ public class BluetoothService {
 		mAdapter = BluetoothAdapter.getDefaultAdapter();
 		mState = STATE_NONE;
 		mHandler = handler;
+		mFramePool = new FrameBufferPool(MAX_POOLED_FRAMES);
 	}
 
 	/**
@@ -136,6 +148,35 @@ public class BluetoothService {
 		return mState;
 	}
 
+	/**
+	 * Return the pool that received packets are read into. Its hit and miss counts show whether
+	 * receiving has become allocation free.
+	 */
+	public FrameBufferPool getFramePool() {
+		return mFramePool;
+	}
+
+	/**
+	 * Return the telemetry for the current session. The counts start over with each connection.
+	 */
+	public LinkStats getLinkStats() {
+		return mLinkStats;
+	}
+
+	/**
+	 * Set what happens when a packet is written while the send queue is full. Takes effect
+	 * immediately for the current connection as well as for later ones.
+	 * 
+	 * @param policy
+	 *            One of the SendQueue POLICY_ constants
+	 */
+	public synchronized void setSendPolicy(int policy) {
+		mSendPolicy = policy;
+		if (mConnectedThread != null) {
+			mConnectedThread.setSendPolicy(policy);
+		}
+	}
+
 	/**
 	 * Start the service. Specifically start AcceptThread to begin a session in listening (server)
 	 * mode. Called by the MainActivity onResume()
@@ -156,7 +197,7 @@ public class BluetoothService {
 			mConnectedThread = null;
 		}
 
-		// Start the thread to listen on a BluetoothServerSocket
+		// Start the thread to listen on a Transport.Server
 		if (mAcceptThread == null) {
 			mAcceptThread = new AcceptThread();
 			mAcceptThread.start();
@@ -165,7 +206,7 @@ public class BluetoothService {
 	}
 
 	/**
-	 * Start the ConnectThread to initiate a connection to a remote device.
+	 * Start the ConnectThread to initiate an RFCOMM connection to a remote device.
 	 * 
 	 * @param device
 	 *            The BluetoothDevice to connect
@@ -174,6 +215,27 @@ public class BluetoothService {
 		if (D)
 			Log.d(TAG, "connect to: " + device);
 
+		// Get a BluetoothSocket for a connection with the
+		// given BluetoothDevice
+		Transport.Connector connector;
+		try {
+			connector = new RfcommTransport.Connector(mAdapter, device, MY_UUID);
+		} catch (IOException e) {
+			Log.e(TAG, "create() failed", e);
+			connectionFailed();
+			return;
+		}
+		connect(connector);
+	}
+
+	/**
+	 * Start the ConnectThread to initiate a connection.
+	 * 
+	 * @param connector
+	 *            Makes the connection
+	 */
+	private synchronized void connect(Transport.Connector connector) {
+
 		// Cancel any thread attempting to make a connection
 		if (mState == STATE_CONNECTING) {
 			if (mConnectThread != null) {
@@ -189,20 +251,18 @@ public class BluetoothService {
 		}
 
 		// Start the thread to connect with the given device
-		mConnectThread = new ConnectThread(device);
+		mConnectThread = new ConnectThread(connector);
 		mConnectThread.start();
 		setState(STATE_CONNECTING);
 	}
 
 	/**
-	 * Start the ConnectedThread to begin managing a Bluetooth connection
+	 * Start the ConnectedThread to begin managing a connection
 	 * 
-	 * @param socket
-	 *            The BluetoothSocket on which the connection was made
-	 * @param device
-	 *            The BluetoothDevice that has been connected
+	 * @param transport
+	 *            The Transport on which the connection was made
 	 */
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+	public synchronized void connected(Transport transport) {
 		if (D)
 			Log.d(TAG, "connected");
 
@@ -226,13 +286,14 @@ public class BluetoothService {
 		}
 
 		// Start the thread to manage the connection and perform transmissions
-		mConnectedThread = new ConnectedThread(socket);
+		mLinkStats.reset();
+		mConnectedThread = new ConnectedThread(transport);
 		mConnectedThread.start();
 
 		// Send the name of the connected device back to the UI Activity
 		Message msg = mHandler.obtainMessage(MainActivity.MESSAGE_DEVICE_NAME);
 		Bundle bundle = new Bundle();
-		bundle.putString(MainActivity.DEVICE_NAME, device.getName());
+		bundle.putString(MainActivity.DEVICE_NAME, transport.getRemoteName());
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
 
@@ -262,23 +323,28 @@ public class BluetoothService {
 	}
 
 	/**
-	 * Write to the ConnectedThread in an unsynchronized manner
+	 * Queue a packet for the writer thread in an unsynchronized manner. The packet is written
+	 * asynchronously so the caller never waits on the link, unless the send policy is
+	 * SendQueue.POLICY_BLOCK and the queue is full.
 	 * 
 	 * @param out
-	 *            The bytes to write
-	 * @see ConnectedThread#write(byte[])
+	 *            The packet to write. The service takes over the caller's reference.
+	 * @return true if the packet was queued
+	 * @see ConnectedThread#write(FrameBuffer)
 	 */
-	public void write(byte[] out) {
+	public boolean write(FrameBuffer out) {
 		// Create temporary object
 		ConnectedThread r;
 		// Synchronize a copy of the ConnectedThread
 		synchronized (this) {
-			if (mState != STATE_CONNECTED)
-				return;
+			if (mState != STATE_CONNECTED) {
+				out.release();
+				return false;
+			}
 			r = mConnectedThread;
 		}
 		// Perform the write unsynchronized
-		r.write(out);
+		return r.write(out);
 	}
 
 	/**
@@ -310,55 +376,58 @@ public class BluetoothService {
 	 * client. It runs until a connection is accepted (or until cancelled).
 	 */
 	private class AcceptThread extends Thread {
-		// The local server socket
-		private final BluetoothServerSocket mmServerSocket;
+		// The local server
+		private final Transport.Server mmServer;
 
 		public AcceptThread() {
-			BluetoothServerSocket tmp = null;
+			Transport.Server tmp = null;
 
-			// Create a new listening server socket
+			// Create a new listening server
 			try {
-				tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME, MY_UUID);
+				tmp = new RfcommTransport.Server(mAdapter, NAME, MY_UUID);
 			} catch (IOException e) {
 				Log.e(TAG, "listen() failed", e);
 			}
-			mmServerSocket = tmp;
+			mmServer = tmp;
 		}
 
 		public void run() {
 			if (D)
 				Log.d(TAG, "BEGIN mAcceptThread" + this);
 			setName("AcceptThread");
-			BluetoothSocket socket = null;
+			Transport transport = null;
+			if (mmServer == null) {
+				return;
+			}
 
-			// Listen to the server socket if we're not connected
+			// Listen to the server if we're not connected
 			while (mState != STATE_CONNECTED) {
 				try {
 					// This is a blocking call and will only return on a
 					// successful connection or an exception
-					socket = mmServerSocket.accept();
+					transport = mmServer.accept();
 				} catch (IOException e) {
 					Log.e(TAG, "accept() failed", e);
 					break;
 				}
 
 				// If a connection was accepted
-				if (socket != null) {
+				if (transport != null) {
 					synchronized (BluetoothService.this) {
 						switch (mState) {
 						case STATE_LISTEN:
 						case STATE_CONNECTING:
 							// Situation normal. Start the connected thread.
-							connected(socket, socket.getRemoteDevice());
+							connected(transport);
 							break;
 						case STATE_NONE:
 						case STATE_CONNECTED:
 							// Either not ready or already connected. Terminate
-							// new socket.
+							// new connection.
 							try {
-								socket.close();
+								transport.close();
 							} catch (IOException e) {
-								Log.e(TAG, "Could not close unwanted socket", e);
+								Log.e(TAG, "Could not close unwanted connection", e);
 							}
 							break;
 						}
@@ -372,8 +441,11 @@ public class BluetoothService {
 		public void cancel() {
 			if (D)
 				Log.d(TAG, "cancel " + this);
+			if (mmServer == null) {
+				return;
+			}
 			try {
-				mmServerSocket.close();
+				mmServer.close();
 			} catch (IOException e) {
 				Log.e(TAG, "close() of server failed", e);
 			}
@@ -385,43 +457,26 @@ public class BluetoothService {
 	 * straight through; the connection either succeeds or fails.
 	 */
 	private class ConnectThread extends Thread {
-		private final BluetoothSocket mmSocket;
-		private final BluetoothDevice mmDevice;
-
-		public ConnectThread(BluetoothDevice device) {
-			mmDevice = device;
-			BluetoothSocket tmp = null;
+		private final Transport.Connector mmConnector;
 
-			// Get a BluetoothSocket for a connection with the
-			// given BluetoothDevice
-			try {
-				tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-			} catch (IOException e) {
-				Log.e(TAG, "create() failed", e);
-			}
-			mmSocket = tmp;
+		public ConnectThread(Transport.Connector connector) {
+			mmConnector = connector;
 		}
 
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectThread");
 			setName("ConnectThread");
 
-			// Always cancel discovery because it will slow down a connection
-			mAdapter.cancelDiscovery();
-
-			// Make a connection to the BluetoothSocket
+			// Make a connection
+			Transport transport;
 			try {
 				// This is a blocking call and will only return on a
 				// successful connection or an exception
-				mmSocket.connect();
+				transport = mmConnector.connect();
 			} catch (IOException e) {
 				connectionFailed();
-				// Close the socket
-				try {
-					mmSocket.close();
-				} catch (IOException e2) {
-					Log.e(TAG, "unable to close() socket during connection failure", e2);
-				}
+				// Close the connection
+				mmConnector.cancel();
 				// Start the service over to restart listening mode
 				BluetoothService.this.start();
 				return;
@@ -433,87 +488,67 @@ public class BluetoothService {
 			}
 
 			// Start the connected thread
-			connected(mmSocket, mmDevice);
+			connected(transport);
 		}
 
 		public void cancel() {
-			try {
-				mmSocket.close();
-			} catch (IOException e) {
-				Log.e(TAG, "close() of connect socket failed", e);
-			}
+			mmConnector.cancel();
 		}
 	}
 
 	/**
-	 * This thread runs during a connection with a remote device. It handles all incoming and
-	 * outgoing transmissions.
+	 * This thread runs during a connection with a remote device. It handles all incoming
+	 * transmissions and hands outgoing ones to its WriterThread.
 	 */
 	private class ConnectedThread extends Thread {
-		private final BluetoothSocket mmSocket;
+		private final Transport mmTransport;
 		private final InputStream mmInStream;
-		private final OutputStream mmOutStream;
+		private final FrameReader mmReader;
+		private final WriterThread mmWriter;
 
-		public ConnectedThread(BluetoothSocket socket) {
+		public ConnectedThread(Transport transport) {
 			Log.d(TAG, "create ConnectedThread");
-			mmSocket = socket;
+			mmTransport = transport;
 			InputStream tmpIn = null;
 			OutputStream tmpOut = null;
 
-			// Get the BluetoothSocket input and output streams
+			// Get the Transport input and output streams
 			try {
-				tmpIn = socket.getInputStream();
-				tmpOut = socket.getOutputStream();
+				tmpIn = transport.getInputStream();
+				tmpOut = transport.getOutputStream();
 			} catch (IOException e) {
 				Log.e(TAG, "temp sockets not created", e);
 			}
 
 			mmInStream = tmpIn;
-			mmOutStream = tmpOut;
+			mmReader = new FrameReader(mmInStream, mFramePool);
+			mmWriter = new WriterThread(tmpOut, new SendQueue(SEND_QUEUE_CAPACITY, mSendPolicy, mLinkStats));
 		}
 
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectedThread");
-			int messageType;
-			int messageLength;
-			byte[] buffer;
+			mmWriter.start();
+			FrameReader reader = mmReader;
+			long corruptFrames = 0;
 
 			// Keep listening to the InputStream while connected
 			while (true) {
 				try {
-					// Read from the InputStream and store message in buffer.
-					// bytes contains the number of bytes read.
-					messageType = mmInStream.read();
-
-					// read in the message length
-					buffer = new byte[4];
-					mmInStream.read(buffer);
-					messageLength = ByteBuffer.wrap(buffer).getInt();
-
-					if(messageLength != 0){
-						buffer = new byte[messageLength];
-						// mmInstream.read(buffer); // <-- this code is causing a race condition, works
-						// if you insert Thread.sleep(1000) right after it
-	
-						int count = 0;
-						// read in bytes until we've reached messagelength
-						while (count < messageLength) {
-							buffer[count] = (byte) mmInStream.read();
-							count++;
-						}
-					} else{
-						buffer = null;
+					// Read a whole packet into a pooled buffer
+					FrameBuffer frame = reader.readFrame();
+					mLinkStats.recordBytesReceived(FrameEncoder.getPacketLength(frame.getLength()));
+					if (Protocol.startsImage(frame)) {
+						mLinkStats.recordImageReceived();
 					}
-					if (mmInStream.read() == MainActivity.EOT) {
-						// Send the obtained bytes to the UI Activity
-						mHandler.obtainMessage(MainActivity.MESSAGE_READ, messageType,
-								messageLength, buffer).sendToTarget();
-					} else {
-						Log.e(TAG, "FOOTER BYTE not received.  Communication misaligned!");
-						connectionLost();
-						break;
+					if (reader.getCorruptFrameCount() != corruptFrames) {
+						mLinkStats.recordDropped(LinkStats.STAGE_RECEIVE, reader.getCorruptFrameCount() - corruptFrames);
+						corruptFrames = reader.getCorruptFrameCount();
 					}
 
+					// Send the obtained bytes to the UI Activity, which releases the buffer
+					mHandler.obtainMessage(MainActivity.MESSAGE_READ, frame.getType(), frame.getLength(), frame)
+							.sendToTarget();
+
 				} catch (IOException e) {
 					Log.e(TAG, "disconnected", e);
 					connectionLost();
@@ -523,32 +558,139 @@ public class BluetoothService {
 					break;
 				}
 			}
+			if (D)
+				Log.d(TAG, "END mConnectedThread, frame pool hits: " + mFramePool.getHitCount() + " misses: "
+						+ mFramePool.getMissCount() + ", resyncs: " + reader.getResyncCount() + " (skipped "
+						+ reader.getSkippedByteCount() + " bytes), corrupt packets: " + reader.getCorruptFrameCount());
 		}
 
 		/**
-		 * Write to the connected OutStream.
+		 * Queue a packet for the writer thread.
 		 * 
-		 * @param buffer
-		 *            The bytes to write
+		 * @param frame
+		 *            The packet to write
 		 */
-		public void write(byte[] buffer) {
+		public boolean write(FrameBuffer frame) {
+			return mmWriter.write(frame);
+		}
+
+		public void setSendPolicy(int policy) {
+			mmWriter.mmQueue.setPolicy(policy);
+		}
+
+		public void cancel() {
+			mmWriter.cancel();
 			try {
-				mmOutStream.write(buffer);
+				mmTransport.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close() of connect socket failed", e);
+			}
+		}
+	}
+
+	/**
+	 * This thread owns the output stream of a connection. It takes packets off the send queue,
+	 * frames them as they are written and writes everything that is queued before flushing, so
+	 * small control packets that pile up behind an image go out in a single flush. Long image and
+	 * bulk packets are written in chunks, with any control packets queued meanwhile written and
+	 * flushed between two chunks.
+	 */
+	private class WriterThread extends Thread {
+		private final OutputStream mmSocketOutStream;
+		private final OutputStream mmOutStream;
+		private final SendQueue mmQueue;
+		private final FrameEncoder mmEncoder = new FrameEncoder();
 
-				mmOutStream.flush();
-				// Share the sent message back to the UI Activity
-				mHandler.obtainMessage(MainActivity.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+		public WriterThread(OutputStream out, SendQueue queue) {
+			mmSocketOutStream = out;
+			mmOutStream = new BufferedOutputStream(out, WRITE_BUFFER_SIZE);
+			mmQueue = queue;
+		}
+
+		public void run() {
+			Log.i(TAG, "BEGIN mWriterThread");
+			setName("WriterThread");
+			try {
+				FrameBuffer frame;
+				while ((frame = mmQueue.take()) != null) {
+					// write everything queued so far, then flush once
+					do {
+						writePacket(frame);
+					} while ((frame = mmQueue.poll()) != null);
+					mmOutStream.flush();
+				}
 			} catch (IOException e) {
+				// the reading thread notices the lost connection and restarts the service
 				Log.e(TAG, "Exception during write", e);
+			} catch (InterruptedException e) {
+				Log.e(TAG, "WriterThread interrupted", e);
+			}
+			mmQueue.close();
+			if (D)
+				Log.i(TAG, "END mWriterThread");
+		}
+
+		/**
+		 * Write a packet and release it.
+		 */
+		private void writePacket(FrameBuffer frame) throws IOException {
+			try {
+				int length = frame.getLength();
+				if (!Protocol.isChunked(frame.getType(), length)) {
+					mmEncoder.writeFrame(mmOutStream, frame);
+					mLinkStats.recordBytesSent(FrameEncoder.getPacketLength(length));
+				} else {
+					for (int offset = 0; offset < length; offset += Protocol.MAX_CHUNK_LENGTH) {
+						int count = Math.min(Protocol.MAX_CHUNK_LENGTH, length - offset);
+						mmEncoder.writeChunk(mmOutStream, frame, offset, count);
+						mLinkStats.recordBytesSent(FrameEncoder.getChunkLength(count));
+						if (offset + count < length) {
+							writeQueuedControl();
+						}
+					}
+				}
+				if (Protocol.startsImage(frame)) {
+					mLinkStats.recordImageSent(Protocol.getImageNumber(frame));
+				}
+				// Share the sent message type and size back to the UI Activity
+				mHandler.obtainMessage(MainActivity.MESSAGE_WRITE, frame.getType(), frame.getLength()).sendToTarget();
+			} finally {
+				frame.release();
+			}
+		}
+
+		// Write the control packets queued so far and flush, so they don't sit in the buffer behind
+		// the rest of the packet being chunked
+		private void writeQueuedControl() throws IOException {
+			FrameBuffer control = mmQueue.pollControl();
+			if (control == null) {
+				return;
+			}
+			do {
+				writePacket(control);
+			} while ((control = mmQueue.pollControl()) != null);
+			mmOutStream.flush();
+		}
+
+		/**
+		 * Add a packet to the send queue.
+		 */
+		public boolean write(FrameBuffer frame) {
+			try {
+				return mmQueue.offer(frame);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
 		}
 
 		public void cancel() {
+			mmQueue.close();
 			try {
-				mmOutStream.close();
-				mmSocket.close();
+				// close the socket stream directly, flushing the buffer could block on a dead link
+				mmSocketOutStream.close();
 			} catch (IOException e) {
-				Log.e(TAG, "close() of connect socket failed", e);
+				Log.e(TAG, "close() of output stream failed", e);
 			}
 		}
 	}
@@ -1,6 +1,7 @@
 package com.example.lilwand;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.content.Context;
 import android.hardware.Camera;
@@ -13,6 +14,13 @@ import android.view.SurfaceView;
 public class CameraPreview extends SurfaceView implements
 		SurfaceHolder.Callback {
 	private static final String TAG = "CameraPreview";
+
+	// Preview frames are delivered in these buffers and handed back to the camera once encoded,
+	// so the preview allocates nothing per frame. If all of them are in use the camera drops frames.
+	// Every restart makes a new set, buffers of an older set are left to the garbage collector.
+	private static final int PREVIEW_BUFFER_COUNT = 4;
+	private byte[][] mPreviewBuffers; // guarded by this
+
 	private SurfaceHolder mHolder;
 	private Camera mCamera;
 	private MainActivity mContext;
@@ -47,8 +55,14 @@ public class CameraPreview extends SurfaceView implements
 	public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
 		// If your preview can change or rotate, take care of those events here.
 		// Make sure to stop the preview before resizing or reformatting it.
-		
+		restartPreview();
+	}
 
+	/**
+	 * Stop the preview, pick the preview size again and restart it, e.g. once the controller has
+	 * told us the size it displays at.
+	 */
+	public void restartPreview() {
 		if (mHolder.getSurface() == null) {
 			// preview surface does not exist
 			return;
@@ -60,14 +74,26 @@ public class CameraPreview extends SurfaceView implements
 		} catch (Exception e) {
 			// ignore: tried to stop a non-existent preview
 		}
+		// the buffers queued with the camera may also be held by the encoder, start over with a new
+		// set so that none of them is queued twice or written while it is being encoded
+		synchronized (this) {
+			mPreviewBuffers = null;
+		}
+		mCamera.setPreviewCallbackWithBuffer(null);
 
-		// set preview size based on frames width/height
-		configureCameraPreview(mContext.getPreviewWidth(), mContext.getPreviewHeight());
+		// stream at the controller's size once it is known, until then at our own frame's size
+		if (mContext.getViewerWidth() > 0) {
+			configureCameraPreview(getStreamSize(mContext.getViewerWidth(), mContext.getViewerHeight(), mCamera.getParameters()));
+		} else {
+			configureCameraPreview(getBestPreviewSize(mContext.getPreviewWidth(), mContext.getPreviewHeight(), mCamera.getParameters()));
+		}
 		// start preview with new settings
 		try {
 			mCamera.setPreviewDisplay(mHolder);
-			// set preview callback to call onPreviewFrame in MainActivity
-			mCamera.setPreviewCallback((PreviewCallback) mContext);
+			// set preview callback to call onPreviewFrame in MainActivity, which returns each
+			// buffer with addCallbackBuffer
+			addPreviewBuffers();
+			mCamera.setPreviewCallbackWithBuffer((PreviewCallback) mContext);
 			mCamera.startPreview();
 
 		} catch (Exception e) {
@@ -75,22 +101,75 @@ public class CameraPreview extends SurfaceView implements
 		}
 	}
 
-	public void configureCameraPreview(int width, int height) {
+	public void configureCameraPreview(Camera.Size size) {
 		Camera.Parameters parameters = mCamera.getParameters();
-		Camera.Size size = getBestPreviewSize(width, height, parameters);
 
 		if (size != null) {
 			parameters.setPreviewSize(size.width, size.height);
 			mCamera.setParameters(parameters);
 			
-			byte[] message = mContext.concatByteArray(mContext.intToByteArray(size.width),mContext.intToByteArray(size.height));
-			mContext.sendMessageWithHeader(MainActivity.HEADER_CAMERA_PARAMETERS, message);
+			byte[] message = ByteBuffer.allocate(8).putInt(size.width).putInt(size.height).array();
+			mContext.sendMessageWithHeader(Protocol.HEADER_CAMERA_PARAMETERS, message);
 			mContext.setCameraImageSize(size.width, size.height);
 			
 
 		}
 	}
 
+	private synchronized void addPreviewBuffers() {
+		Camera.Parameters parameters = mCamera.getParameters();
+		Camera.Size size = parameters.getPreviewSize();
+		// the encoder thread only takes frames of exactly this size
+		int bufferSize = Nv21.getFrameSize(size.width, size.height);
+
+		mPreviewBuffers = new byte[PREVIEW_BUFFER_COUNT][];
+		for (int i = 0; i < PREVIEW_BUFFER_COUNT; i++) {
+			mPreviewBuffers[i] = new byte[bufferSize];
+			mCamera.addCallbackBuffer(mPreviewBuffers[i]);
+		}
+	}
+
+	/**
+	 * Hand a preview buffer back to the camera once its frame has been encoded or dropped. A buffer
+	 * from before the last restart is not the camera's any more and is let go of instead.
+	 */
+	public synchronized void returnBuffer(byte[] buffer) {
+		if (mPreviewBuffers == null) {
+			return;
+		}
+		for (byte[] own : mPreviewBuffers) {
+			if (own == buffer) {
+				mCamera.addCallbackBuffer(buffer);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Return the smallest preview size that, scaled to fit the viewer's surface, still fills it
+	 * without being enlarged. If every size would be enlarged, return the largest.
+	 */
+	private Camera.Size getStreamSize(int viewerWidth, int viewerHeight, Camera.Parameters parameters) {
+		Camera.Size result = null;
+		Camera.Size largest = null;
+
+		for (Camera.Size size : parameters.getSupportedPreviewSizes()) {
+			int area = size.width * size.height;
+			if (largest == null || area > largest.width * largest.height) {
+				largest = size;
+			}
+			// the image is scaled by the smaller ratio to fit, so it fills the surface unenlarged
+			// if either dimension covers the surface
+			if (size.width >= viewerWidth || size.height >= viewerHeight) {
+				if (result == null || area < result.width * result.height) {
+					result = size;
+				}
+			}
+		}
+
+		return result != null ? result : largest;
+	}
+
 	private Camera.Size getBestPreviewSize(int width, int height,
 			Camera.Parameters parameters) {
 		Camera.Size result = null;
@@ -1,33 +1,319 @@
 package com.example.lilwand;
 
-import android.content.Context;
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+/**
+ * The surface the controller draws the camera's images on. While the surface exists a render
+ * thread waits for decoded images, or stripes of images, and draws them as soon as they arrive,
+ * optionally holding them until the next vsync so they land on a display refresh. Bitmaps posted
+ * here belong to the preview until they have been drawn or dropped, then they go back to the
+ * decoder's BitmapPool.
+ *
+ * Images wait in a FrameQueue of MAX_QUEUED_ITEMS images or stripes and MAX_QUEUED_BYTES of
+ * pixels. Each pass the render thread takes everything waiting and draws the newest whole image
+ * with the stripes that came after it, under one lock of the surface, so it never falls behind
+ * the decoder and the memory held stays flat.
+ */
 public class ControllerPreview extends SurfaceView implements SurfaceHolder.Callback{
+	private static final String TAG = "ControllerPreview";
+	private static final boolean D = true;
+
+	// Images or stripes waiting to be drawn at most, two images of as many stripes as the camera sends
+	private static final int MAX_QUEUED_ITEMS = 8;
+	private static final long MAX_QUEUED_BYTES = 8 * 1024 * 1024;
 
-	public ControllerPreview(Context context) {
+	private MainActivity mContext;
+	private final BitmapPool mBitmapPool;
+	private final LinkStats mStats;
+	private final FrameQueue<Frame> mFrames;
+	private final ArrayList<Frame> mFreeFrames = new ArrayList<Frame>();
+	private final VsyncWaiter mVsync = new VsyncWaiter();
+	private volatile boolean mAlignToVsync;
+	private volatile boolean mSurfaceReady;
+	private RenderThread mRenderThread;
+
+	public ControllerPreview(MainActivity context, BitmapPool pool, LinkStats stats) {
 		super(context);
-		// TODO Auto-generated constructor stub
+		mContext = context;
+		mBitmapPool = pool;
+		mStats = stats;
+		mFrames = new FrameQueue<Frame>(MAX_QUEUED_ITEMS, MAX_QUEUED_BYTES, new FrameQueue.DropListener<Frame>() {
+			public void onDropped(Frame frame) {
+				// replaced by newer images before it was drawn
+				if (frame.mCompletesImage) {
+					mStats.recordDropped(LinkStats.STAGE_RENDER, 1);
+				}
+				recycle(frame);
+			}
+		});
+		getHolder().addCallback(this);
+	}
+
+	/**
+	 * Queue a decoded image to be drawn. Images that arrive while there is no surface are dropped.
+	 */
+	public void postFrame(Bitmap bitmap) {
+		Frame frame = obtain(bitmap);
+		frame.mStripe = false;
+		frame.mCompletesImage = true;
+		post(frame);
+	}
+
+	/**
+	 * Queue one decoded stripe of an image to be drawn over the part of the image it covers.
+	 *
+	 * @param top
+	 *            The first row of the image the stripe covers
+	 * @param imageWidth
+	 *            The width of the image the stripe belongs to, at the size it was encoded
+	 * @param last
+	 *            Whether this is the last stripe of its image to be drawn
+	 */
+	public void postStripe(Bitmap stripe, int top, int imageWidth, boolean last) {
+		Frame frame = obtain(stripe);
+		frame.mStripe = true;
+		frame.mTop = top;
+		frame.mImageWidth = imageWidth;
+		frame.mCompletesImage = last;
+		post(frame);
+	}
+
+	private void post(Frame frame) {
+		mFrames.offer(frame, getByteCount(frame.mBitmap));
+		if (!mSurfaceReady) {
+			// the surface is gone, the render thread won't take it
+			mFrames.clear();
+		}
+	}
+
+	// the queue's items are reused, so posting doesn't allocate once there are enough of them
+	private Frame obtain(Bitmap bitmap) {
+		Frame frame;
+		synchronized (mFreeFrames) {
+			int last = mFreeFrames.size() - 1;
+			frame = last >= 0 ? mFreeFrames.remove(last) : new Frame();
+		}
+		frame.mBitmap = bitmap;
+		return frame;
+	}
+
+	// drawn or dropped, the decoder may have the bitmap back
+	private void recycle(Frame frame) {
+		mBitmapPool.release(frame.mBitmap);
+		frame.mBitmap = null;
+		synchronized (mFreeFrames) {
+			mFreeFrames.add(frame);
+		}
+	}
+
+	/**
+	 * Return the memory a bitmap takes up. From KitKat an image can be decoded into a bigger pooled
+	 * bitmap, which keeps its whole allocation while getByteCount() reports only the image's pixels.
+	 */
+	private static int getByteCount(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getByteCount();
+	}
+
+	/**
+	 * Choose whether images wait for the next vsync before they are drawn.
+	 */
+	public void setAlignToVsync(boolean align) {
+		mAlignToVsync = align;
 	}
 
 	@Override
 	public void surfaceCreated(SurfaceHolder holder) {
-		// TODO Auto-generated method stub
-		
+		mSurfaceReady = true;
+		mRenderThread = new RenderThread(holder);
+		mRenderThread.start();
 	}
 
 	@Override
 	public void surfaceChanged(SurfaceHolder holder, int format, int width,
 			int height) {
-		// TODO Auto-generated method stub
-		
+		// let the camera pick a stream resolution for this surface
+		mContext.setViewerSize(width, height);
 	}
 
 	@Override
 	public void surfaceDestroyed(SurfaceHolder holder) {
-		// TODO Auto-generated method stub
-		
+		// the surface may not be drawn on once this returns
+		mSurfaceReady = false;
+		mRenderThread.cancel();
+		mRenderThread = null;
+		mFrames.clear();
+	}
+
+	/**
+	 * A whole image or one stripe of an image waiting in mFrames.
+	 */
+	private static class Frame {
+		Bitmap mBitmap;
+		boolean mStripe;
+		int mTop; // of a stripe, in the rows of its image
+		int mImageWidth; // of a stripe's image
+		boolean mCompletesImage; // a whole image, or the last stripe of one
+		final Rect mDst = new Rect();
+	}
+
+	/**
+	 * Draws images and stripes from mFrames on the surface it was created for. Bitmaps are scaled
+	 * as they are drawn and only the area they cover is locked, so drawing allocates nothing.
+	 */
+	private class RenderThread extends Thread {
+		private final SurfaceHolder mmHolder;
+		private final Paint mmPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		private final Frame[] mmBatch = new Frame[MAX_QUEUED_ITEMS];
+		private final Rect mmArea = new Rect();
+		private final Rect mmDirty = new Rect();
+
+		public RenderThread(SurfaceHolder holder) {
+			super("RenderThread");
+			mmHolder = holder;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Frame first = mFrames.take();
+					int count = 0;
+					mmBatch[count++] = first;
+					try {
+						if (mAlignToVsync) {
+							mVsync.await();
+						}
+						// whatever arrived in the meantime goes on screen in the same pass
+						Frame next;
+						while (count < mmBatch.length && (next = mFrames.poll()) != null) {
+							mmBatch[count++] = next;
+						}
+						draw(count);
+					} finally {
+						for (int i = 0; i < count; i++) {
+							recycle(mmBatch[i]);
+							mmBatch[i] = null;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				if(D) Log.d(TAG, "render thread interrupted");
+			}
+		}
+
+		private void draw(int count) {
+			int width = mContext.getControllerImageWidth();
+			int height = mContext.getControllerImageHeight();
+			if (width <= 0 || height <= 0) {
+				return;
+			}
+			int left = (getWidth() - width) / 2;
+			int top = (getHeight() - height) / 2;
+
+			// a whole image covers everything queued before it
+			int start = 0;
+			for (int i = count - 1; i > 0; i--) {
+				if (!mmBatch[i].mStripe) {
+					start = i;
+					break;
+				}
+			}
+			for (int i = 0; i < start; i++) {
+				if (mmBatch[i].mCompletesImage) {
+					mStats.recordDropped(LinkStats.STAGE_RENDER, 1);
+				}
+			}
+
+			mmArea.setEmpty();
+			for (int i = start; i < count; i++) {
+				Frame frame = mmBatch[i];
+				if (frame.mStripe) {
+					float scale = (float) width / frame.mImageWidth;
+					frame.mDst.set(left, top + (int) (frame.mTop * scale), left + width, top
+							+ (int) ((frame.mTop + frame.mBitmap.getHeight()) * scale));
+				} else {
+					frame.mDst.set(left, top, left + width, top + height);
+				}
+				mmArea.union(frame.mDst);
+			}
+
+			// the surface may hand back a larger dirty area, the first time or after a resize
+			mmDirty.set(mmArea);
+			Canvas canvas = mmHolder.lockCanvas(mmDirty);
+			if (canvas == null) {
+				return;
+			}
+			try {
+				if (!mmDirty.equals(mmArea)) {
+					canvas.drawColor(Color.BLACK);
+				}
+				for (int i = start; i < count; i++) {
+					canvas.drawBitmap(mmBatch[i].mBitmap, null, mmBatch[i].mDst, mmPaint);
+				}
+			} finally {
+				mmHolder.unlockCanvasAndPost(canvas);
+			}
+			for (int i = start; i < count; i++) {
+				if (mmBatch[i].mCompletesImage) {
+					mStats.recordFrameDrawn();
+				}
+			}
+		}
+
+		/**
+		 * Stop the thread and wait for it to finish drawing.
+		 */
+		public void cancel() {
+			interrupt();
+			mVsync.cancel();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
+	/**
+	 * Lets the render thread wait for the next vsync. The Choreographer calls back on the UI
+	 * thread, whose Choreographer this is, but a callback may be posted from any thread.
+	 */
+	private static class VsyncWaiter implements Choreographer.FrameCallback {
+		private final Choreographer mmChoreographer = Choreographer.getInstance();
+		private long mmFrames;
+
+		/**
+		 * Block until the next vsync.
+		 */
+		public synchronized void await() throws InterruptedException {
+			long frames = mmFrames;
+			mmChoreographer.postFrameCallback(this);
+			while (mmFrames == frames) {
+				wait();
+			}
+		}
+
+		public synchronized void doFrame(long frameTimeNanos) {
+			mmFrames++;
+			notifyAll();
+		}
+
+		public void cancel() {
+			mmChoreographer.removeFrameCallback(this);
+		}
+	}
 }
@@ -0,0 +1,117 @@
+package com.example.lilwand;
+
+/**
+ * Credit based flow control for images sent by the camera. The window is the number of images that
+ * may be in flight at once: sending an image uses up a credit and the controller hands credits
+ * back as it consumes images, so the link stays busy while latency stays bounded by the window.
+ * A window of one is the old stop-and-wait behaviour.
+ *
+ * Images are numbered in the order they are sent and an ack names the newest image consumed,
+ * standing for every image before it too. An image or an ack lost on the link is therefore covered
+ * by the next ack. If no ack arrives at all, because every image in flight was lost, the oldest
+ * image's credit expires after a timeout so the camera never stops for good.
+ */
+public class CreditWindow {
+	private final long mTimeoutNanos;
+	private int mWindow;
+	private int mNext; // number of the next image
+	private int mAcked; // number of the oldest image not yet acknowledged
+	private long[] mSendTimes; // indexed by image number modulo the window
+	private long mExpired;
+
+	/**
+	 * @param timeoutMillis
+	 *            How long the oldest image may go unacknowledged while the window is full before
+	 *            its credit is given back
+	 */
+	public CreditWindow(int window, long timeoutMillis) {
+		mTimeoutNanos = timeoutMillis * 1000000L;
+		reset(window);
+	}
+
+	/**
+	 * Start over with a new window size and all credits available. Numbering carries on, so acks
+	 * for images sent before the reset are ignored.
+	 */
+	public synchronized void reset(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be at least 1");
+		}
+		mWindow = window;
+		mAcked = mNext;
+		if (mSendTimes == null || mSendTimes.length != window) {
+			mSendTimes = new long[window];
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait for a credit and use it up.
+	 *
+	 * @return the number of the image the credit is for
+	 */
+	public synchronized int acquire() throws InterruptedException {
+		while (mNext - mAcked >= mWindow) {
+			long remaining = mSendTimes[index(mAcked)] + mTimeoutNanos - System.nanoTime();
+			if (remaining <= 0) {
+				// the image or its ack was lost and nothing sent since has been acknowledged
+				mAcked++;
+				mExpired++;
+				break;
+			}
+			wait(remaining / 1000000L + 1);
+		}
+		mSendTimes[index(mNext)] = System.nanoTime();
+		return mNext++;
+	}
+
+	/**
+	 * Give back the credit of an image that was never sent. Only the image acquired last may be
+	 * abandoned, its number is handed out again.
+	 */
+	public synchronized void abandon(int image) {
+		if (image == mNext - 1 && mNext != mAcked) {
+			mNext--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Record an ack for every image up to and including the given one.
+	 *
+	 * @return the number of images newly acknowledged, 0 if the ack is older than one already
+	 *         received or names an image that wasn't sent
+	 */
+	public synchronized int ack(int image) {
+		int acked = image + 1 - mAcked;
+		if (acked <= 0 || acked > mNext - mAcked) {
+			return 0;
+		}
+		mAcked = image + 1;
+		notifyAll();
+		return acked;
+	}
+
+	public synchronized int getWindow() {
+		return mWindow;
+	}
+
+	/**
+	 * Return the number of images sent but not yet acknowledged.
+	 */
+	public synchronized int getInFlight() {
+		return mNext - mAcked;
+	}
+
+	/**
+	 * Return the number of credits given back because their ack never came.
+	 */
+	public synchronized long getExpiredCount() {
+		return mExpired;
+	}
+
+	// slot of an image number in mSendTimes, numbers wrap around to negative
+	private int index(int image) {
+		return (image % mWindow + mWindow) % mWindow;
+	}
+}
@@ -0,0 +1,116 @@
+package com.example.lilwand;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted packet buffer. Buffers are handed out by a {@link FrameBufferPool} with a
+ * reference count of one and go back to the pool when the last holder calls {@link #release()}.
+ * Every stage that passes a buffer on to another thread gives up its reference with it, so a buffer
+ * is released exactly once per {@link #retain()} (plus once for the acquire).
+ */
+public class FrameBuffer {
+	private static final byte[] EMPTY = new byte[0];
+
+	private final FrameBufferPool mPool;
+	private final byte[] mData;
+	private final AtomicInteger mRefCount = new AtomicInteger();
+	private int mLength;
+	private int mType;
+	private long mQueueTime;
+
+	FrameBuffer(FrameBufferPool pool, int capacity) {
+		mPool = pool;
+		mData = capacity == 0 ? EMPTY : new byte[capacity];
+	}
+
+	private FrameBuffer(byte[] data, int length) {
+		mPool = null;
+		mData = data;
+		mLength = length;
+		mRefCount.set(1);
+	}
+
+	/**
+	 * Wrap an existing array in a buffer that does not belong to any pool.
+	 */
+	public static FrameBuffer wrap(int type, byte[] data) {
+		FrameBuffer buffer = data == null ? new FrameBuffer(EMPTY, 0) : new FrameBuffer(data, data.length);
+		buffer.mType = type;
+		return buffer;
+	}
+
+	/**
+	 * Return the backing array. Only the first {@link #getLength()} bytes are valid.
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getCapacity() {
+		return mData.length;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	public void setLength(int length) {
+		if (length < 0 || length > mData.length) {
+			throw new IllegalArgumentException("length " + length + " exceeds capacity " + mData.length);
+		}
+		mLength = length;
+	}
+
+	/**
+	 * Return the packet type (one of the Protocol HEADER_ constants).
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	public void setType(int type) {
+		mType = type;
+	}
+
+	/**
+	 * Return the System.nanoTime() at which the packet was put in a SendQueue.
+	 */
+	long getQueueTime() {
+		return mQueueTime;
+	}
+
+	void setQueueTime(long nanos) {
+		mQueueTime = nanos;
+	}
+
+	/**
+	 * Take an additional reference to this buffer.
+	 */
+	public FrameBuffer retain() {
+		if (mRefCount.getAndIncrement() <= 0) {
+			throw new IllegalStateException("retain() of a released buffer");
+		}
+		return this;
+	}
+
+	/**
+	 * Drop a reference to this buffer, returning it to its pool when no references remain.
+	 */
+	public void release() {
+		int count = mRefCount.decrementAndGet();
+		if (count == 0) {
+			if (mPool != null) {
+				mPool.recycle(this);
+			}
+		} else if (count < 0) {
+			throw new IllegalStateException("release() of a released buffer");
+		}
+	}
+
+	// called by the pool when the buffer is handed out
+	void reset() {
+		mLength = 0;
+		mType = 0;
+		mRefCount.set(1);
+	}
+}
@@ -0,0 +1,144 @@
+package com.example.lilwand;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that writes straight into a pooled {@link FrameBuffer}, so an encoder's output
+ * can be queued for sending without copying it out of a ByteArrayOutputStream first. The buffer
+ * for each frame is sized from an average of recent frame sizes plus headroom; a frame that does
+ * not fit moves to a buffer twice the size, which costs one copy.
+ *
+ * Call {@link #begin(int)} before each frame and {@link #finish()} after it. A stream is not
+ * thread safe; it belongs to the encoding thread.
+ */
+public class FrameBufferOutputStream extends OutputStream {
+	private static final int MIN_CAPACITY = 16 * 1024;
+	private static final double EWMA_WEIGHT = 0.25;
+
+	private final FrameBufferPool mPool;
+	private FrameBuffer mBuffer;
+	private byte[] mData;
+	private int mCount;
+	private double mAverageSize = -1;
+	private long mGrowCount;
+
+	public FrameBufferOutputStream(FrameBufferPool pool) {
+		mPool = pool;
+	}
+
+	/**
+	 * Start a new frame, discarding any frame that was not finished.
+	 *
+	 * @param type
+	 *            The packet type of the frame (one of the Protocol HEADER_ constants)
+	 */
+	public void begin(int type) {
+		if (mBuffer != null) {
+			mBuffer.release();
+		}
+		mBuffer = mPool.acquire(getExpectedCapacity());
+		mBuffer.setType(type);
+		mData = mBuffer.getData();
+		mCount = 0;
+	}
+
+	/**
+	 * End the frame and hand it over. The caller owns the returned buffer's reference.
+	 */
+	public FrameBuffer finish() {
+		if (mBuffer == null) {
+			throw new IllegalStateException("finish() without begin()");
+		}
+		FrameBuffer frame = mBuffer;
+		frame.setLength(mCount);
+		mAverageSize = mAverageSize < 0 ? mCount : mAverageSize + EWMA_WEIGHT * (mCount - mAverageSize);
+		mBuffer = null;
+		mData = null;
+		return frame;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(mCount + 1);
+		mData[mCount++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(mCount + len);
+		System.arraycopy(b, off, mData, mCount, len);
+		mCount += len;
+	}
+
+	public void writeInt(int value) {
+		ensureCapacity(mCount + 4);
+		FrameEncoder.writeInt(mData, mCount, value);
+		mCount += 4;
+	}
+
+	public void writeShort(int value) {
+		ensureCapacity(mCount + 2);
+		mData[mCount++] = (byte) (value >>> 8);
+		mData[mCount++] = (byte) value;
+	}
+
+	/**
+	 * Overwrite an int already written, e.g. a length that was not known until after the data.
+	 */
+	public void setInt(int position, int value) {
+		if (position < 0 || position + 4 > mCount) {
+			throw new IndexOutOfBoundsException("position " + position + " of " + mCount);
+		}
+		FrameEncoder.writeInt(mData, position, value);
+	}
+
+	/**
+	 * Return the number of bytes written to the current frame.
+	 */
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * Release a frame that was not finished.
+	 */
+	@Override
+	public void close() {
+		if (mBuffer != null) {
+			mBuffer.release();
+			mBuffer = null;
+			mData = null;
+		}
+	}
+
+	/**
+	 * Return the number of frames that outgrew the buffer they were started in.
+	 */
+	public long getGrowCount() {
+		return mGrowCount;
+	}
+
+	// the average frame size plus half again, so ordinary variation fits
+	private int getExpectedCapacity() {
+		if (mAverageSize < 0) {
+			return MIN_CAPACITY;
+		}
+		return Math.max(MIN_CAPACITY, (int) (mAverageSize * 1.5));
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (mBuffer == null) {
+			throw new IllegalStateException("write() without begin()");
+		}
+		if (capacity <= mData.length) {
+			return;
+		}
+		mGrowCount++;
+		FrameBuffer bigger = mPool.acquire(Math.max(capacity, 2 * mData.length));
+		bigger.setType(mBuffer.getType());
+		System.arraycopy(mData, 0, bigger.getData(), 0, mCount);
+		mBuffer.release();
+		mBuffer = bigger;
+		mData = bigger.getData();
+	}
+}
@@ -0,0 +1,101 @@
+package com.example.lilwand;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of {@link FrameBuffer}s shared by the threads a packet passes through. Requests
+ * are served by the smallest free buffer that is large enough; when none fits a new buffer is
+ * allocated and counted as a miss. Once a session has warmed up the miss count should stop
+ * growing, which means packets are moving through the app without allocating.
+ */
+public class FrameBufferPool {
+	// buffers are allocated in multiples of this so that frames of similar size share buffers
+	private static final int CAPACITY_GRANULARITY = 4 * 1024;
+
+	private final int mMaxPooled;
+	private final ArrayList<FrameBuffer> mFree;
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+
+	/**
+	 * @param maxPooled
+	 *            The maximum number of free buffers kept for reuse
+	 */
+	public FrameBufferPool(int maxPooled) {
+		mMaxPooled = maxPooled;
+		mFree = new ArrayList<FrameBuffer>(maxPooled);
+	}
+
+	/**
+	 * Return a buffer of at least minCapacity bytes with a reference count of one.
+	 */
+	public FrameBuffer acquire(int minCapacity) {
+		FrameBuffer buffer = null;
+		synchronized (mFree) {
+			int best = -1;
+			for (int i = 0; i < mFree.size(); i++) {
+				int capacity = mFree.get(i).getCapacity();
+				if (capacity >= minCapacity && (best < 0 || capacity < mFree.get(best).getCapacity())) {
+					best = i;
+				}
+			}
+			if (best >= 0) {
+				buffer = mFree.remove(best);
+			}
+		}
+
+		if (buffer != null) {
+			mHits.incrementAndGet();
+		} else {
+			mMisses.incrementAndGet();
+			int capacity = (minCapacity + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY * CAPACITY_GRANULARITY;
+			buffer = new FrameBuffer(this, capacity);
+		}
+		buffer.reset();
+		return buffer;
+	}
+
+	// called by FrameBuffer.release() when the last reference is dropped
+	void recycle(FrameBuffer buffer) {
+		synchronized (mFree) {
+			if (mFree.size() < mMaxPooled) {
+				mFree.add(buffer);
+				return;
+			}
+			// pool is full, keep the larger buffers since they can serve any request
+			int smallest = 0;
+			for (int i = 1; i < mFree.size(); i++) {
+				if (mFree.get(i).getCapacity() < mFree.get(smallest).getCapacity()) {
+					smallest = i;
+				}
+			}
+			if (mFree.get(smallest).getCapacity() < buffer.getCapacity()) {
+				mFree.set(smallest, buffer);
+			}
+		}
+	}
+
+	/**
+	 * Return the number of requests served from the pool.
+	 */
+	public long getHitCount() {
+		return mHits.get();
+	}
+
+	/**
+	 * Return the number of requests that had to allocate a new buffer.
+	 */
+	public long getMissCount() {
+		return mMisses.get();
+	}
+
+	/**
+	 * Return the number of free buffers currently held.
+	 */
+	public int getPooledCount() {
+		synchronized (mFree) {
+			return mFree.size();
+		}
+	}
+}
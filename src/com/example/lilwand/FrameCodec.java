@@ -0,0 +1,46 @@
+package com.example.lilwand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+
+/**
+ * Turns NV21 preview frames into HEADER_IMAGE payloads on the camera and back into Bitmaps on the
+ * controller. The controller lists the codecs it can decode when it connects and the camera
+ * announces the one it encodes with in a HEADER_CODEC packet ahead of the first image that uses it.
+ *
+ * A codec instance keeps scratch state between frames and belongs to one thread.
+ */
+public interface FrameCodec {
+	// Constants that identify a codec on the wire
+	public static final int CODEC_JPEG = 0;
+	public static final int CODEC_LUMA_DEFLATE = 1;
+
+	/**
+	 * Return the CODEC_ constant identifying this codec.
+	 */
+	int getId();
+
+	/**
+	 * Encode a frame.
+	 *
+	 * @param quality
+	 *            0-100, codecs without a quality setting ignore it
+	 */
+	void encode(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException;
+
+	/**
+	 * Set the size images are drawn at. Codecs that can decode at a lower resolution decode no
+	 * smaller than this, the others ignore it.
+	 */
+	void setTargetSize(int width, int height);
+
+	/**
+	 * Decode a payload into a bitmap taken from the pool.
+	 *
+	 * @return the image, or null if the payload could not be decoded. The caller gives the bitmap
+	 *         back to the pool once it has been drawn.
+	 */
+	Bitmap decode(byte[] data, int offset, int length, BitmapPool pool);
+}
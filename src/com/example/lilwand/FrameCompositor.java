@@ -0,0 +1,142 @@
+package com.example.lilwand;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Rebuilds frames on the controller from HEADER_IMAGE_DELTA packets. Every full image decoded is
+ * kept as the keyframe; when a delta arrives the keyframe is copied into a mutable frame once and
+ * the delta's tiles are drawn over it. Each delta is applied to the result of the previous one.
+ *
+ * The keyframe is only copied when the first delta arrives, so the caller must not decode into the
+ * keyframe bitmap again before it has set the next keyframe.
+ *
+ * A delta is only correct on top of the image before it. When an image goes missing the caller
+ * invalidates the compositor, and deltas are refused until the next full image.
+ *
+ * The keyframe may have been decoded subsampled to fit the controller's surface, while tiles are
+ * placed in the camera's full size coordinates. Tiles are then decoded subsampled by the same
+ * power of two and drawn where Subsampling puts them in the smaller frame.
+ */
+public class FrameCompositor {
+	private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+	private Bitmap mKeyframe;
+	private Bitmap mFrame;
+	private Canvas mCanvas;
+	private final Canvas mCopyCanvas = new Canvas();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Rect mDst = new Rect();
+
+	public FrameCompositor() {
+		mOptions.inPreferQualityOverSpeed = false;
+		mOptions.inDither = false;
+	}
+
+	/**
+	 * Make a decoded full image the base for the deltas that follow. The bitmap is not modified.
+	 *
+	 * @param keyframe
+	 *            The image, or null if the full image failed to decode
+	 */
+	public synchronized void setKeyframe(Bitmap keyframe) {
+		if (keyframe == null) {
+			invalidate();
+		}
+		mKeyframe = keyframe;
+	}
+
+	/**
+	 * Forget the current frame because an image it depends on was lost. Deltas are refused until
+	 * the next keyframe is set.
+	 */
+	public synchronized void invalidate() {
+		if (mFrame != null) {
+			mFrame.recycle();
+			mFrame = null;
+		}
+		mCanvas = null;
+		mKeyframe = null;
+	}
+
+	/**
+	 * Draw the tiles of a HEADER_IMAGE_DELTA payload over the current frame.
+	 *
+	 * @return the number of tiles drawn, or -1 if there is no frame of the right size to draw them
+	 *         on
+	 */
+	public synchronized int applyDelta(byte[] data, int offset, int length) {
+		ByteBuffer b = ByteBuffer.wrap(data, offset, length);
+		int width = b.getInt();
+		int height = b.getInt();
+		int count = b.getInt();
+
+		if (mKeyframe != null) {
+			// start over from the newest full image
+			if (mFrame != null) {
+				mFrame.recycle();
+			}
+			mFrame = mKeyframe.copy(Bitmap.Config.ARGB_8888, true);
+			mCanvas = new Canvas(mFrame);
+			mKeyframe = null;
+		}
+		if (mFrame == null) {
+			return -1;
+		}
+		int sampleSize = Subsampling.findSampleSize(width, height, mFrame.getWidth(), mFrame.getHeight());
+		if (sampleSize < 0) {
+			// the keyframe is of another stream size
+			return -1;
+		}
+
+		for (int i = 0; i < count; i++) {
+			int left = b.getShort();
+			int top = b.getShort();
+			int tileLength = b.getInt();
+			int position = b.position();
+			b.position(position + tileLength);
+			if (sampleSize == 1) {
+				Bitmap tile = BitmapFactory.decodeByteArray(data, position, tileLength, mOptions);
+				if (tile != null) {
+					mCanvas.drawBitmap(tile, left, top, null);
+					tile.recycle();
+				}
+				continue;
+			}
+
+			// the tile's size before subsampling, from its JPEG header
+			mOptions.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, position, tileLength, mOptions);
+			mOptions.inJustDecodeBounds = false;
+			mDst.set(Subsampling.scale(left, sampleSize), Subsampling.scale(top, sampleSize), Subsampling.scale(left
+					+ mOptions.outWidth, sampleSize), Subsampling.scale(top + mOptions.outHeight, sampleSize));
+			mOptions.inSampleSize = sampleSize;
+			Bitmap tile = BitmapFactory.decodeByteArray(data, position, tileLength, mOptions);
+			mOptions.inSampleSize = 1;
+			if (tile != null) {
+				mCanvas.drawBitmap(tile, null, mDst, mPaint);
+				tile.recycle();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return a copy of the current frame in a bitmap taken from the pool, or null if there is no
+	 * frame.
+	 */
+	public synchronized Bitmap copyFrame(BitmapPool pool) {
+		if (mFrame == null) {
+			return null;
+		}
+		Bitmap copy = pool.acquire(mFrame.getWidth(), mFrame.getHeight());
+		mCopyCanvas.setBitmap(copy);
+		mCopyCanvas.drawBitmap(mFrame, 0, 0, null);
+		mCopyCanvas.setBitmap(null);
+		return copy;
+	}
+}
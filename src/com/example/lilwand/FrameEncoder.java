@@ -0,0 +1,106 @@
+package com.example.lilwand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Writes packets to an OutputStream. The header and footer are built in reusable arrays and the
+ * payload is written straight from the caller's buffer, so framing a packet neither allocates nor
+ * copies the payload. The bytes on the wire are those read by {@link FrameReader}, see
+ * {@link Protocol} for the layout. Long packets are cut into chunks by the caller with
+ * {@link #writeChunk(OutputStream, FrameBuffer, int, int)}.
+ *
+ * An encoder is not thread safe; it belongs to the thread that owns the stream.
+ */
+public class FrameEncoder {
+	private final byte[] mHeader = new byte[Protocol.PACKET_HEADER_LENGTH];
+	private final byte[] mFooter = new byte[Protocol.PACKET_FOOTER_LENGTH];
+	private final byte[] mChunkHeader = new byte[Protocol.CHUNK_HEADER_LENGTH];
+	private final CRC32 mCrc = new CRC32();
+
+	public FrameEncoder() {
+		mHeader[0] = Protocol.SYNC_0;
+		mHeader[1] = Protocol.SYNC_1;
+		mHeader[2] = Protocol.VERSION;
+		mFooter[4] = Protocol.EOT;
+	}
+
+	/**
+	 * Write the packet held in a FrameBuffer. The buffer is not released.
+	 */
+	public void writeFrame(OutputStream out, FrameBuffer frame) throws IOException {
+		writeFrame(out, frame.getType(), frame.getData(), 0, frame.getLength());
+	}
+
+	/**
+	 * Write a packet around the given payload.
+	 */
+	public void writeFrame(OutputStream out, int type, byte[] payload, int offset, int length) throws IOException {
+		if (length > Protocol.MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("payload of " + length + " bytes exceeds the maximum");
+		}
+		writeHeader(out, type, length);
+		mCrc.reset();
+		if (length > 0) {
+			mCrc.update(payload, offset, length);
+			out.write(payload, offset, length);
+		}
+		writeFooter(out);
+	}
+
+	/**
+	 * Write count bytes of a packet's payload, starting at offset, as one chunk. The chunks of a
+	 * packet must be written in order and cover the whole payload.
+	 */
+	public void writeChunk(OutputStream out, FrameBuffer frame, int offset, int count) throws IOException {
+		if (frame.getLength() > Protocol.MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("payload of " + frame.getLength() + " bytes exceeds the maximum");
+		}
+		writeHeader(out, frame.getType() | Protocol.FLAG_CHUNK, Protocol.CHUNK_HEADER_LENGTH + count);
+		writeInt(mChunkHeader, 0, frame.getLength());
+		writeInt(mChunkHeader, 4, offset);
+		mCrc.reset();
+		mCrc.update(mChunkHeader, 0, Protocol.CHUNK_HEADER_LENGTH);
+		out.write(mChunkHeader, 0, Protocol.CHUNK_HEADER_LENGTH);
+		if (count > 0) {
+			mCrc.update(frame.getData(), offset, count);
+			out.write(frame.getData(), offset, count);
+		}
+		writeFooter(out);
+	}
+
+	private void writeHeader(OutputStream out, int type, int length) throws IOException {
+		mHeader[3] = (byte) type;
+		writeInt(mHeader, 4, length);
+		mHeader[8] = Protocol.headerCheck(mCrc, mHeader);
+		out.write(mHeader, 0, Protocol.PACKET_HEADER_LENGTH);
+	}
+
+	// the payload CRC has been accumulated in mCrc
+	private void writeFooter(OutputStream out) throws IOException {
+		writeInt(mFooter, 0, (int) mCrc.getValue());
+		out.write(mFooter, 0, Protocol.PACKET_FOOTER_LENGTH);
+	}
+
+	/**
+	 * Return the number of bytes a packet with the given payload length takes on the wire.
+	 */
+	public static int getPacketLength(int payloadLength) {
+		return Protocol.PACKET_HEADER_LENGTH + payloadLength + Protocol.PACKET_FOOTER_LENGTH;
+	}
+
+	/**
+	 * Return the number of bytes a chunk carrying count bytes of payload takes on the wire.
+	 */
+	public static int getChunkLength(int count) {
+		return getPacketLength(Protocol.CHUNK_HEADER_LENGTH + count);
+	}
+
+	static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,66 @@
+package com.example.lilwand;
+
+/**
+ * A single-slot handoff between a producer that must never wait and a consumer that only wants the
+ * newest item. Publishing replaces whatever is in the slot and hands the replaced item back to the
+ * producer, so stale preview buffers can be returned to the camera straight away.
+ */
+public class FrameMailbox<T> {
+	private T mItem;
+	private boolean mClosed;
+
+	/**
+	 * Put an item in the slot.
+	 *
+	 * @return the item it replaced, or null if the slot was empty. If the mailbox is closed the
+	 *         published item itself is returned.
+	 */
+	public synchronized T publish(T item) {
+		if (mClosed) {
+			return item;
+		}
+		T replaced = mItem;
+		mItem = item;
+		notifyAll();
+		return replaced;
+	}
+
+	/**
+	 * Wait for an item and remove it from the slot.
+	 *
+	 * @return the item, or null once the mailbox has been closed
+	 */
+	public synchronized T take() throws InterruptedException {
+		while (!mClosed && mItem == null) {
+			wait();
+		}
+		return poll();
+	}
+
+	/**
+	 * Remove the item in the slot without waiting.
+	 *
+	 * @return the item, or null if the slot is empty or the mailbox is closed
+	 */
+	public synchronized T poll() {
+		if (mClosed) {
+			return null;
+		}
+		T item = mItem;
+		mItem = null;
+		return item;
+	}
+
+	/**
+	 * Close the mailbox and wake up a waiting consumer.
+	 *
+	 * @return the item left in the slot, or null
+	 */
+	public synchronized T close() {
+		mClosed = true;
+		T item = mItem;
+		mItem = null;
+		notifyAll();
+		return item;
+	}
+}
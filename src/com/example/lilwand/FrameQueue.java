@@ -0,0 +1,126 @@
+package com.example.lilwand;
+
+/**
+ * A bounded handoff between a producer that must never wait and a consumer that should always get
+ * the newest items. The queue holds at most maxDepth items and at most maxBytes of them; offering
+ * an item drops the oldest ones until both limits are met. The newest item is always kept, even if
+ * it is bigger than the budget on its own. Dropped items are handed to the DropListener so they can
+ * be recycled and counted.
+ *
+ * Items and their sizes are kept in fixed rings of maxDepth slots, so the queue doesn't allocate
+ * once it has been created.
+ */
+public class FrameQueue<T> {
+	/**
+	 * Told about every item the queue drops, while the queue's lock is held.
+	 */
+	public interface DropListener<T> {
+		void onDropped(T item);
+	}
+
+	private final Object[] mItems;
+	private final int[] mSizes;
+	private int mHead; // slot of the oldest item
+	private int mCount;
+	private final int mMaxDepth;
+	private final long mMaxBytes;
+	private final DropListener<T> mListener;
+	private long mBytes;
+	private long mDropped;
+
+	/**
+	 * @param maxDepth
+	 *            The number of items the queue holds at most, at least 1
+	 * @param maxBytes
+	 *            The total size of the items the queue holds at most
+	 */
+	public FrameQueue(int maxDepth, long maxBytes, DropListener<T> listener) {
+		if (maxDepth < 1) {
+			throw new IllegalArgumentException("depth must be at least 1");
+		}
+		mItems = new Object[maxDepth];
+		mSizes = new int[maxDepth];
+		mMaxDepth = maxDepth;
+		mMaxBytes = maxBytes;
+		mListener = listener;
+	}
+
+	/**
+	 * Add an item to the tail of the queue, dropping the oldest items to make room.
+	 *
+	 * @param bytes
+	 *            The memory the item takes up
+	 */
+	public synchronized void offer(T item, int bytes) {
+		while (mCount > 0 && (mCount >= mMaxDepth || mBytes + bytes > mMaxBytes)) {
+			drop();
+		}
+		int tail = (mHead + mCount) % mMaxDepth;
+		mItems[tail] = item;
+		mSizes[tail] = bytes;
+		mCount++;
+		mBytes += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for an item and remove the oldest one.
+	 */
+	public synchronized T take() throws InterruptedException {
+		while (mCount == 0) {
+			wait();
+		}
+		return removeFirst();
+	}
+
+	/**
+	 * Remove the oldest item without waiting.
+	 *
+	 * @return the item, or null if the queue is empty
+	 */
+	public synchronized T poll() {
+		return mCount > 0 ? removeFirst() : null;
+	}
+
+	/**
+	 * Drop every item in the queue.
+	 */
+	public synchronized void clear() {
+		while (mCount > 0) {
+			drop();
+		}
+	}
+
+	public synchronized int size() {
+		return mCount;
+	}
+
+	/**
+	 * Return the memory taken up by the items in the queue.
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * Return the number of items dropped so far.
+	 */
+	public synchronized long getDroppedCount() {
+		return mDropped;
+	}
+
+	private void drop() {
+		mDropped++;
+		mListener.onDropped(removeFirst());
+	}
+
+	@SuppressWarnings("unchecked")
+	private T removeFirst() {
+		T item = (T) mItems[mHead];
+		mItems[mHead] = null;
+		mBytes -= mSizes[mHead];
+		mHead = (mHead + 1) % mMaxDepth;
+		mCount--;
+		return item;
+	}
+}
@@ -0,0 +1,363 @@
+package com.example.lilwand;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads packets from an InputStream. Headers and footers go through a small read-ahead buffer, which
+ * reads at most one header past the bytes asked for, and payloads are filled with bulk reads
+ * (looping over partial reads) straight into buffers taken from a {@link FrameBufferPool}, so once
+ * the pool has warmed up no further allocation or copying takes place.
+ *
+ * A damaged or misaligned stream does not end the session. If a header fails its checks the reader
+ * scans forward byte by byte for the next sync word, and a packet whose payload fails its CRC is
+ * dropped. Both are counted so the link quality can be monitored. The header check is only a byte,
+ * so stray bytes now and then pass for a header and claim whatever follows as their payload. When
+ * the CRC then fails, the bytes taken since the header's sync word are read again before the
+ * stream, and the search for the next header starts one byte into the false one, so the packets
+ * it swallowed are still found.
+ *
+ * Chunks are put back together into a single packet, so callers only ever see whole packets. A
+ * chunked packet that loses a chunk is dropped and counted with the corrupt packets. The reader
+ * tells nobody which images it dropped: the controller finds them from the gap they leave in the
+ * image numbers, in order with the images it decodes.
+ *
+ * This class has no Bluetooth dependencies so it can be driven by any InputStream.
+ */
+public class FrameReader {
+	// room for a chunk's headers and footer with the next packet's header read ahead
+	private static final int READ_AHEAD_LENGTH = 256;
+
+	private final InputStream mIn;
+	private final FrameBufferPool mPool;
+	private final byte[] mBuffer = new byte[READ_AHEAD_LENGTH];
+	private int mPos; // next unread byte in mBuffer
+	private int mLimit; // end of the bytes read into mBuffer
+	private final CRC32 mCrc = new CRC32();
+
+	// the headers of the packet being read, kept in case they turn out to be false
+	private final byte[] mHeader = new byte[Protocol.PACKET_HEADER_LENGTH + Protocol.CHUNK_HEADER_LENGTH];
+	// payload of a chunk that belongs to no packet, read only to check it
+	private final byte[] mDiscard = new byte[Protocol.MAX_CHUNK_LENGTH];
+	// bytes to read again before the stream, after a false header, or null
+	private FrameBuffer mReplay;
+	private int mReplayPos;
+
+	// the chunked packet being put together, null between packets
+	private FrameBuffer mPacket;
+	private int mPacketLength;
+	private int mPacketReceived;
+
+	// corruption statistics
+	private long mResyncCount;
+	private long mSkippedBytes;
+	private long mCorruptFrames;
+
+	public FrameReader(InputStream in, FrameBufferPool pool) {
+		mIn = in;
+		mPool = pool;
+	}
+
+	/**
+	 * Block until a complete, intact packet has been read, skipping over any damaged data.
+	 *
+	 * @return A buffer holding the packet type and payload. The caller owns the only reference and
+	 *         must release it when done.
+	 * @throws EOFException
+	 *             if the stream ends
+	 */
+	public FrameBuffer readFrame() throws IOException {
+		while (true) {
+			readHeader();
+			int type = mHeader[3] & 0xff;
+			int length = readInt(mHeader, 4);
+
+			if ((type & Protocol.FLAG_CHUNK) != 0 && length >= Protocol.CHUNK_HEADER_LENGTH) {
+				FrameBuffer packet = readChunk(type & ~Protocol.FLAG_CHUNK, length);
+				if (packet != null) {
+					return packet;
+				}
+				continue;
+			}
+
+			FrameBuffer frame = mPool.acquire(length);
+			boolean success = false;
+			try {
+				readFully(frame.getData(), 0, length);
+				fill(Protocol.PACKET_FOOTER_LENGTH);
+
+				mCrc.reset();
+				mCrc.update(frame.getData(), 0, length);
+				if ((int) mCrc.getValue() == readInt(mBuffer, mPos) && mBuffer[mPos + 4] == Protocol.EOT) {
+					mPos += Protocol.PACKET_FOOTER_LENGTH;
+					if ((type & Protocol.FLAG_CHUNK) == 0) {
+						frame.setType(type);
+						frame.setLength(length);
+						success = true;
+						return frame;
+					}
+					// a chunk too short to hold its header
+					mCorruptFrames++;
+					continue;
+				}
+
+				// the payload is damaged, bytes went missing or the header was false; the payload may
+				// hold the next packets, so search again from just past the header's start. A damaged
+				// chunk is counted once, with the packet it belonged to. A lost image shows up
+				// downstream as a gap in the image numbers.
+				replay(Protocol.PACKET_HEADER_LENGTH, frame.getData(), 0, length);
+				if ((type & Protocol.FLAG_CHUNK) != 0 && mPacket != null) {
+					dropPacket();
+				} else {
+					mCorruptFrames++;
+				}
+			} finally {
+				if (!success) {
+					frame.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a chunk whose packet header was just read. Its payload goes straight into the packet
+	 * being put together, at the chunk's offset, and is checked there.
+	 *
+	 * @return the packet once its last chunk has arrived, otherwise null
+	 */
+	private FrameBuffer readChunk(int type, int length) throws IOException {
+		fill(Protocol.CHUNK_HEADER_LENGTH);
+		System.arraycopy(mBuffer, mPos, mHeader, Protocol.PACKET_HEADER_LENGTH, Protocol.CHUNK_HEADER_LENGTH);
+		int total = readInt(mBuffer, mPos);
+		int offset = readInt(mBuffer, mPos + 4);
+		int count = length - Protocol.CHUNK_HEADER_LENGTH;
+		mCrc.reset();
+		mCrc.update(mBuffer, mPos, Protocol.CHUNK_HEADER_LENGTH);
+		mPos += Protocol.CHUNK_HEADER_LENGTH;
+
+		if (offset == 0) {
+			// a new packet, the one before it is never going to be finished
+			dropPacket();
+			if (total > 0 && total <= Protocol.MAX_PAYLOAD_LENGTH) {
+				mPacket = mPool.acquire(total);
+				mPacket.setType(type);
+				mPacketLength = total;
+				mPacketReceived = 0;
+			}
+		}
+		boolean fits = mPacket != null && mPacket.getType() == type && total == mPacketLength
+				&& offset == mPacketReceived && count <= total - offset;
+		// a chunk that doesn't fit is still read, in case its header was false and the bytes have to
+		// be searched again
+		byte[] payload = fits ? mPacket.getData() : mDiscard;
+		int payloadOffset = fits ? offset : 0;
+		readFully(payload, payloadOffset, count);
+		mCrc.update(payload, payloadOffset, count);
+		fill(Protocol.PACKET_FOOTER_LENGTH);
+
+		if ((int) mCrc.getValue() != readInt(mBuffer, mPos) || mBuffer[mPos + 4] != Protocol.EOT) {
+			// damaged or false, search again as for a whole packet. The chunk is counted once, with
+			// the packet it belonged to.
+			replay(Protocol.PACKET_HEADER_LENGTH + Protocol.CHUNK_HEADER_LENGTH, payload, payloadOffset, count);
+			if (mPacket != null) {
+				dropPacket();
+			} else {
+				mCorruptFrames++;
+			}
+			return null;
+		}
+		mPos += Protocol.PACKET_FOOTER_LENGTH;
+		if (!fits) {
+			// a chunk went missing
+			dropPacket();
+			return null;
+		}
+
+		mPacketReceived += count;
+		if (mPacketReceived < mPacketLength) {
+			return null;
+		}
+		FrameBuffer packet = mPacket;
+		packet.setLength(mPacketLength);
+		mPacket = null;
+		return packet;
+	}
+
+	/**
+	 * Arrange for the bytes of a packet that failed its CRC to be read again, from one byte past its
+	 * sync word: the rest of its headers, its payload and whatever has been read beyond it.
+	 *
+	 * @param headerLength
+	 *            The length of the packet's headers in mHeader
+	 */
+	private void replay(int headerLength, byte[] payload, int offset, int count) {
+		int buffered = mLimit - mPos;
+		int replaying = mReplay != null ? mReplay.getLength() - mReplayPos : 0;
+		FrameBuffer replay = mPool.acquire(headerLength - 1 + count + buffered + replaying);
+		byte[] data = replay.getData();
+		int length = 0;
+		System.arraycopy(mHeader, 1, data, length, headerLength - 1);
+		length += headerLength - 1;
+		System.arraycopy(payload, offset, data, length, count);
+		length += count;
+		System.arraycopy(mBuffer, mPos, data, length, buffered);
+		length += buffered;
+		if (mReplay != null) {
+			// bytes read again already come before the stream
+			System.arraycopy(mReplay.getData(), mReplayPos, data, length, replaying);
+			length += replaying;
+			mReplay.release();
+		}
+		replay.setLength(length);
+		mReplay = replay;
+		mReplayPos = 0;
+		mPos = 0;
+		mLimit = 0;
+	}
+
+	private void dropPacket() {
+		if (mPacket != null) {
+			mCorruptFrames++;
+			mPacket.release();
+			mPacket = null;
+		}
+	}
+
+	/**
+	 * Return the number of times the reader lost its place and had to search for a sync word.
+	 */
+	public long getResyncCount() {
+		return mResyncCount;
+	}
+
+	/**
+	 * Return the number of bytes discarded while searching for a sync word.
+	 */
+	public long getSkippedByteCount() {
+		return mSkippedBytes;
+	}
+
+	/**
+	 * Return the number of packets with a valid header that were dropped for a bad payload CRC, and
+	 * of chunked packets dropped for a missing chunk.
+	 */
+	public long getCorruptFrameCount() {
+		return mCorruptFrames;
+	}
+
+	/**
+	 * Consume a header, sliding forward through the stream until one passes its checks. The header
+	 * is left just before mPos.
+	 */
+	private void readHeader() throws IOException {
+		fill(Protocol.PACKET_HEADER_LENGTH);
+		if (!isValidHeader(mPos)) {
+			mResyncCount++;
+			do {
+				// drop the first byte and look for the next sync word in the rest
+				mPos++;
+				mSkippedBytes++;
+				fill(1);
+				while (mBuffer[mPos] != Protocol.SYNC_0) {
+					mPos++;
+					mSkippedBytes++;
+					fill(1);
+				}
+				fill(Protocol.PACKET_HEADER_LENGTH);
+			} while (!isValidHeader(mPos));
+		}
+		System.arraycopy(mBuffer, mPos, mHeader, 0, Protocol.PACKET_HEADER_LENGTH);
+		mPos += Protocol.PACKET_HEADER_LENGTH;
+	}
+
+	private boolean isValidHeader(int pos) {
+		if (mBuffer[pos] != Protocol.SYNC_0 || mBuffer[pos + 1] != Protocol.SYNC_1
+				|| mBuffer[pos + 2] != Protocol.VERSION) {
+			return false;
+		}
+		int length = readInt(mBuffer, pos + 4);
+		if (length < 0 || length > Protocol.MAX_PAYLOAD_LENGTH) {
+			return false;
+		}
+		if ((mBuffer[pos + 3] & Protocol.FLAG_CHUNK) != 0
+				&& length > Protocol.CHUNK_HEADER_LENGTH + Protocol.MAX_CHUNK_LENGTH) {
+			return false;
+		}
+		return mBuffer[pos + 8] == Protocol.headerCheck(mCrc, mBuffer, pos);
+	}
+
+	/**
+	 * Wait until at least count bytes are buffered past mPos. A read may also take in up to a
+	 * header's worth beyond them, which saves a read per packet while leaving the payload that
+	 * follows to be read straight into its packet buffer rather than copied through mBuffer.
+	 */
+	private void fill(int count) throws IOException {
+		if (mLimit - mPos >= count) {
+			return;
+		}
+		if (mPos + count + Protocol.PACKET_HEADER_LENGTH > mBuffer.length) {
+			compact();
+		}
+		while (mLimit - mPos < count) {
+			int want = count - (mLimit - mPos) + Protocol.PACKET_HEADER_LENGTH;
+			int read = readStream(mBuffer, mLimit, Math.min(want, mBuffer.length - mLimit));
+			if (read < 0) {
+				throw new EOFException();
+			}
+			mLimit += read;
+		}
+	}
+
+	// move the unread bytes to the start of the buffer
+	private void compact() {
+		if (mPos > 0) {
+			System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+			mLimit -= mPos;
+			mPos = 0;
+		}
+	}
+
+	/**
+	 * Read exactly length bytes, first from the read-ahead buffer and then straight from the stream,
+	 * looping over the partial reads it hands back.
+	 */
+	private void readFully(byte[] buffer, int offset, int length) throws IOException {
+		int buffered = Math.min(length, mLimit - mPos);
+		System.arraycopy(mBuffer, mPos, buffer, offset, buffered);
+		mPos += buffered;
+		offset += buffered;
+		length -= buffered;
+		while (length > 0) {
+			int count = readStream(buffer, offset, length);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Read from the bytes waiting to be read again, or once there are none from the stream.
+	 */
+	private int readStream(byte[] buffer, int offset, int length) throws IOException {
+		if (mReplay == null) {
+			return mIn.read(buffer, offset, length);
+		}
+		int count = Math.min(length, mReplay.getLength() - mReplayPos);
+		System.arraycopy(mReplay.getData(), mReplayPos, buffer, offset, count);
+		mReplayPos += count;
+		if (mReplayPos == mReplay.getLength()) {
+			mReplay.release();
+			mReplay = null;
+		}
+		return count;
+	}
+
+	static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16 | (buffer[offset + 2] & 0xff) << 8
+				| (buffer[offset + 3] & 0xff);
+	}
+}
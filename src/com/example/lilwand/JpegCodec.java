@@ -0,0 +1,86 @@
+package com.example.lilwand;
+
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Color JPEG through the platform's YuvImage and BitmapFactory. Images much larger than the target
+ * size are decoded subsampled by a power of two, which costs less than decoding the whole image and
+ * scaling it down when it is drawn.
+ */
+public class JpegCodec implements FrameCodec {
+	private static final String TAG = "JpegCodec";
+
+	private final Rect mRect = new Rect();
+	private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+	private int mTargetWidth;
+	private int mTargetHeight;
+
+	public JpegCodec() {
+		mOptions.inPreferQualityOverSpeed = false;
+		mOptions.inDither = false;
+		mOptions.inMutable = true;
+	}
+
+	public int getId() {
+		return CODEC_JPEG;
+	}
+
+	public void encode(byte[] nv21, int width, int height, int quality, OutputStream out) {
+		YuvImage yuvimage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+		mRect.set(0, 0, width, height);
+		yuvimage.compressToJpeg(mRect, quality, out);
+	}
+
+	public void setTargetSize(int width, int height) {
+		mTargetWidth = width;
+		mTargetHeight = height;
+	}
+
+	public Bitmap decode(byte[] data, int offset, int length, BitmapPool pool) {
+		// read the size from the JPEG header first, to pick a bitmap to decode into
+		mOptions.inJustDecodeBounds = true;
+		mOptions.inSampleSize = 1;
+		BitmapFactory.decodeByteArray(data, offset, length, mOptions);
+		if (mOptions.outWidth <= 0 || mOptions.outHeight <= 0) {
+			mOptions.inJustDecodeBounds = false;
+			return null;
+		}
+		int sampleSize = Subsampling.getSampleSize(mOptions.outWidth, mOptions.outHeight, mTargetWidth, mTargetHeight);
+		if (sampleSize > 1) {
+			// the decoder rounds the subsampled size, ask it rather than guess
+			mOptions.inSampleSize = sampleSize;
+			BitmapFactory.decodeByteArray(data, offset, length, mOptions);
+		}
+		mOptions.inJustDecodeBounds = false;
+
+		// before KitKat a subsampled image can't be decoded into an existing bitmap
+		Bitmap reuse = null;
+		if (sampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			reuse = pool.acquire(mOptions.outWidth, mOptions.outHeight);
+		}
+		mOptions.inBitmap = reuse;
+		try {
+			Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, mOptions);
+			if (bitmap == null && reuse != null) {
+				pool.release(reuse);
+			}
+			return bitmap;
+		} catch (IllegalArgumentException e) {
+			// the decoder can't reuse the bitmap, decode into a new one
+			Log.w(TAG, "inBitmap not reusable", e);
+			pool.release(reuse);
+			mOptions.inBitmap = null;
+			return BitmapFactory.decodeByteArray(data, offset, length, mOptions);
+		} finally {
+			mOptions.inBitmap = null;
+		}
+	}
+}
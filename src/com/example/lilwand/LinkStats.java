@@ -0,0 +1,268 @@
+package com.example.lilwand;
+
+import java.util.Locale;
+
+/**
+ * Per-session link telemetry. BluetoothService records bytes and packets as they cross the link and
+ * MainActivity records what happens to frames on either side. Every call to {@link #sample()} turns
+ * the counts since the previous call into rates and averages.
+ *
+ * The ack round trip is measured from the moment an image is written to the link until the
+ * HEADER_IMAGE_RECEIVED that names it arrives. Send times are kept by image number, so an image or
+ * ack lost on the link doesn't pair later acks with the wrong image.
+ *
+ * Queueing delay is the time a packet waits in the SendQueue before the writer takes it, averaged
+ * per channel.
+ */
+public class LinkStats {
+	// Constants that indicate where a frame was dropped
+	public static final int STAGE_CAPTURE = 0; // preview frame not sent for lack of credit
+	public static final int STAGE_SEND = 1; // packet dropped by the send queue
+	public static final int STAGE_RECEIVE = 2; // packet damaged on the link
+	public static final int STAGE_DECODE = 3; // image failed to decode
+	public static final int STAGE_RENDER = 4; // image replaced by a newer one before it was drawn
+	private static final int STAGE_COUNT = 5;
+
+	public static final String CSV_HEADER = "time_ms,bytes_out_per_s,bytes_in_per_s,fps_sent,fps_received,fps_drawn,"
+			+ "rtt_ms,encode_ms,decode_ms,dropped_capture,dropped_send,dropped_receive,dropped_decode,dropped_render,"
+			+ "queue_control_ms,queue_image_ms,queue_bulk_ms";
+
+	private static final int MAX_OUTSTANDING = 32; // a power of two
+
+	// send times of the last MAX_OUTSTANDING images, by image number modulo MAX_OUTSTANDING
+	private final int[] mSentImages = new int[MAX_OUTSTANDING];
+	private final long[] mSendTimes = new long[MAX_OUTSTANDING];
+	private final boolean[] mSendPending = new boolean[MAX_OUTSTANDING];
+
+	// counts since the last sample
+	private long mBytesSent;
+	private long mBytesReceived;
+	private int mFramesSent;
+	private int mFramesReceived;
+	private int mFramesDrawn;
+	private long mRttSum;
+	private int mRttCount;
+	private long mEncodeSum;
+	private int mEncodeCount;
+	private long mDecodeSum;
+	private int mDecodeCount;
+	private final long[] mDropped = new long[STAGE_COUNT];
+	private final long[] mQueueDelaySum = new long[Protocol.CHANNEL_COUNT];
+	private final int[] mQueueDelayCount = new int[Protocol.CHANNEL_COUNT];
+
+	private long mSessionStart;
+	private long mLastSample;
+
+	public LinkStats() {
+		reset();
+	}
+
+	/**
+	 * Start a new session.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < MAX_OUTSTANDING; i++) {
+			mSendPending[i] = false;
+		}
+		clearInterval();
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			mDropped[i] = 0;
+		}
+		mSessionStart = System.nanoTime();
+		mLastSample = mSessionStart;
+	}
+
+	public synchronized void recordBytesSent(int bytes) {
+		mBytesSent += bytes;
+	}
+
+	public synchronized void recordBytesReceived(int bytes) {
+		mBytesReceived += bytes;
+	}
+
+	/**
+	 * Record that an image has been written to the link.
+	 *
+	 * @param image
+	 *            The image number, see Protocol
+	 */
+	public synchronized void recordImageSent(int image) {
+		mFramesSent++;
+		int slot = image & (MAX_OUTSTANDING - 1);
+		mSentImages[slot] = image;
+		mSendTimes[slot] = System.nanoTime();
+		mSendPending[slot] = true;
+	}
+
+	/**
+	 * Record an ack naming an image. The images before it that were lost or skipped give no round
+	 * trip sample.
+	 *
+	 * @return the round trip of the image in nanoseconds, or -1 if it wasn't sent this session, was
+	 *         acknowledged already or is too old to be remembered
+	 */
+	public synchronized long recordImageAcked(int image) {
+		int slot = image & (MAX_OUTSTANDING - 1);
+		if (!mSendPending[slot] || mSentImages[slot] != image) {
+			return -1;
+		}
+		mSendPending[slot] = false;
+		long rtt = System.nanoTime() - mSendTimes[slot];
+		mRttSum += rtt;
+		mRttCount++;
+		return rtt;
+	}
+
+	public synchronized void recordImageReceived() {
+		mFramesReceived++;
+	}
+
+	public synchronized void recordFrameDrawn() {
+		mFramesDrawn++;
+	}
+
+	public synchronized void recordEncodeTime(long nanos) {
+		mEncodeSum += nanos;
+		mEncodeCount++;
+	}
+
+	public synchronized void recordDecodeTime(long nanos) {
+		mDecodeSum += nanos;
+		mDecodeCount++;
+	}
+
+	/**
+	 * Record frames dropped at a stage.
+	 *
+	 * @param stage
+	 *            One of the STAGE_ constants
+	 */
+	public synchronized void recordDropped(int stage, long count) {
+		mDropped[stage] += count;
+	}
+
+	/**
+	 * Record the time a packet spent in the send queue.
+	 *
+	 * @param channel
+	 *            One of the Protocol CHANNEL_ constants
+	 */
+	public synchronized void recordQueueDelay(int channel, long nanos) {
+		mQueueDelaySum[channel] += nanos;
+		mQueueDelayCount[channel]++;
+	}
+
+	/**
+	 * Return the mean ack round trip in nanoseconds over the interval so far, or -1 if no acks
+	 * arrived.
+	 */
+	public synchronized long getCurrentRtt() {
+		return mRttCount == 0 ? -1 : mRttSum / mRttCount;
+	}
+
+	/**
+	 * Turn the counts since the last call into a Snapshot and start a new interval.
+	 */
+	public synchronized Snapshot sample() {
+		long now = System.nanoTime();
+		double seconds = Math.max(now - mLastSample, 1) / 1e9;
+		double[] queueMillis = new double[Protocol.CHANNEL_COUNT];
+		for (int i = 0; i < Protocol.CHANNEL_COUNT; i++) {
+			queueMillis[i] = average(mQueueDelaySum[i], mQueueDelayCount[i]);
+		}
+		Snapshot snapshot = new Snapshot((now - mSessionStart) / 1000000L, mBytesSent / seconds, mBytesReceived
+				/ seconds, mFramesSent / seconds, mFramesReceived / seconds, mFramesDrawn / seconds, average(mRttSum,
+				mRttCount), average(mEncodeSum, mEncodeCount), average(mDecodeSum, mDecodeCount), mDropped.clone(), queueMillis);
+		mLastSample = now;
+		clearInterval();
+		return snapshot;
+	}
+
+	private void clearInterval() {
+		mBytesSent = 0;
+		mBytesReceived = 0;
+		mFramesSent = 0;
+		mFramesReceived = 0;
+		mFramesDrawn = 0;
+		mRttSum = 0;
+		mRttCount = 0;
+		mEncodeSum = 0;
+		mEncodeCount = 0;
+		mDecodeSum = 0;
+		mDecodeCount = 0;
+		for (int i = 0; i < Protocol.CHANNEL_COUNT; i++) {
+			mQueueDelaySum[i] = 0;
+			mQueueDelayCount[i] = 0;
+		}
+	}
+
+	// mean in milliseconds, or -1 if there are no samples
+	private static double average(long sumNanos, int count) {
+		return count == 0 ? -1 : sumNanos / 1e6 / count;
+	}
+
+	/**
+	 * Rates and averages over one sampling interval. Drop counts are totals for the session.
+	 */
+	public static class Snapshot {
+		public final long timeMillis;
+		public final double bytesOutPerSecond;
+		public final double bytesInPerSecond;
+		public final double fpsSent;
+		public final double fpsReceived;
+		public final double fpsDrawn;
+		public final double rttMillis;
+		public final double encodeMillis;
+		public final double decodeMillis;
+		public final long[] dropped;
+		public final double[] queueMillis; // indexed by Protocol CHANNEL_ constant
+
+		Snapshot(long timeMillis, double bytesOutPerSecond, double bytesInPerSecond, double fpsSent,
+				double fpsReceived, double fpsDrawn, double rttMillis, double encodeMillis, double decodeMillis,
+				long[] dropped, double[] queueMillis) {
+			this.timeMillis = timeMillis;
+			this.bytesOutPerSecond = bytesOutPerSecond;
+			this.bytesInPerSecond = bytesInPerSecond;
+			this.fpsSent = fpsSent;
+			this.fpsReceived = fpsReceived;
+			this.fpsDrawn = fpsDrawn;
+			this.rttMillis = rttMillis;
+			this.encodeMillis = encodeMillis;
+			this.decodeMillis = decodeMillis;
+			this.dropped = dropped;
+			this.queueMillis = queueMillis;
+		}
+
+		/**
+		 * Return the snapshot as a line of CSV matching {@link LinkStats#CSV_HEADER}.
+		 */
+		public String toCsvRow() {
+			StringBuilder row = new StringBuilder();
+			row.append(timeMillis).append(',');
+			row.append(String.format(Locale.US, "%.0f,%.0f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f", bytesOutPerSecond,
+					bytesInPerSecond, fpsSent, fpsReceived, fpsDrawn, rttMillis, encodeMillis, decodeMillis));
+			for (long count : dropped) {
+				row.append(',').append(count);
+			}
+			for (double millis : queueMillis) {
+				row.append(String.format(Locale.US, ",%.1f", millis));
+			}
+			return row.toString();
+		}
+
+		/**
+		 * Return the snapshot formatted for the on-screen overlay.
+		 */
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "out %.1f KB/s  in %.1f KB/s\n" + "fps sent %.1f  recv %.1f  drawn %.1f\n"
+					+ "rtt %.1f ms  encode %.1f ms  decode %.1f ms\n"
+					+ "dropped capture %d  send %d  recv %d  decode %d  render %d\n"
+					+ "queue control %.1f ms  image %.1f ms  bulk %.1f ms", bytesOutPerSecond / 1024,
+					bytesInPerSecond / 1024, fpsSent, fpsReceived, fpsDrawn, rttMillis, encodeMillis, decodeMillis,
+					dropped[STAGE_CAPTURE], dropped[STAGE_SEND], dropped[STAGE_RECEIVE], dropped[STAGE_DECODE],
+					dropped[STAGE_RENDER], queueMillis[Protocol.CHANNEL_CONTROL], queueMillis[Protocol.CHANNEL_IMAGE],
+					queueMillis[Protocol.CHANNEL_BULK]);
+		}
+	}
+}
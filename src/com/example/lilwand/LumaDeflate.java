@@ -0,0 +1,109 @@
+package com.example.lilwand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A cheap grayscale image format: the luma plane of an NV21 frame, with each pixel replaced by its
+ * difference from the pixel to its left, deflated at the fastest level. The differences turn the
+ * smooth areas of a picture into runs of small values that deflate well, and the whole encode is a
+ * single pass over the luma, far cheaper than a JPEG encode on a slow phone.
+ *
+ * The payload is [int width][int height][deflate stream]. An instance keeps its Deflater, Inflater
+ * and scratch buffers between frames and belongs to one thread.
+ */
+public class LumaDeflate {
+	public static final int HEADER_LENGTH = 8;
+
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater mInflater = new Inflater();
+	private final byte[] mChunk = new byte[8 * 1024];
+	private byte[] mRow = new byte[0];
+	private byte[] mLuma = new byte[0];
+
+	/**
+	 * Encode the luma plane of an NV21 frame.
+	 */
+	public void encode(byte[] nv21, int width, int height, OutputStream out) throws IOException {
+		FrameEncoder.writeInt(mChunk, 0, width);
+		FrameEncoder.writeInt(mChunk, 4, height);
+		out.write(mChunk, 0, HEADER_LENGTH);
+
+		if (mRow.length < width) {
+			mRow = new byte[width];
+		}
+		mDeflater.reset();
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			byte previous = 0;
+			for (int x = 0; x < width; x++) {
+				byte value = nv21[row + x];
+				mRow[x] = (byte) (value - previous);
+				previous = value;
+			}
+			mDeflater.setInput(mRow, 0, width);
+			while (!mDeflater.needsInput()) {
+				drain(out);
+			}
+		}
+		mDeflater.finish();
+		while (!mDeflater.finished()) {
+			drain(out);
+		}
+	}
+
+	public static int getWidth(byte[] data, int offset) {
+		return FrameReader.readInt(data, offset);
+	}
+
+	public static int getHeight(byte[] data, int offset) {
+		return FrameReader.readInt(data, offset + 4);
+	}
+
+	/**
+	 * Decode a payload into opaque ARGB gray pixels.
+	 *
+	 * @param pixels
+	 *            Receives getWidth() * getHeight() pixels
+	 * @throws DataFormatException
+	 *             if the payload is damaged or too short
+	 */
+	public void decode(byte[] data, int offset, int length, int[] pixels) throws DataFormatException {
+		int width = getWidth(data, offset);
+		int height = getHeight(data, offset);
+		int size = width * height;
+		if (mLuma.length < size) {
+			mLuma = new byte[size];
+		}
+
+		mInflater.reset();
+		mInflater.setInput(data, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+		int count = 0;
+		while (count < size) {
+			int n = mInflater.inflate(mLuma, count, size - count);
+			if (n == 0 && (mInflater.finished() || mInflater.needsInput())) {
+				throw new DataFormatException("luma payload ended after " + count + " of " + size + " bytes");
+			}
+			count += n;
+		}
+
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			int value = 0;
+			for (int x = 0; x < width; x++) {
+				value = (value + mLuma[row + x]) & 0xff;
+				pixels[row + x] = 0xff000000 | value << 16 | value << 8 | value;
+			}
+		}
+	}
+
+	private void drain(OutputStream out) throws IOException {
+		int n = mDeflater.deflate(mChunk);
+		if (n > 0) {
+			out.write(mChunk, 0, n);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.example.lilwand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Grayscale frames in the {@link LumaDeflate} format, for cameras too slow to encode JPEG at a
+ * useful frame rate.
+ */
+public class LumaDeflateCodec implements FrameCodec {
+	private static final String TAG = "LumaDeflateCodec";
+
+	// refuse headers claiming more pixels than any preview has, they are damaged
+	private static final int MAX_PIXELS = 4096 * 4096;
+
+	private final LumaDeflate mLumaDeflate = new LumaDeflate();
+	private int[] mPixels = new int[0];
+
+	public int getId() {
+		return CODEC_LUMA_DEFLATE;
+	}
+
+	public void encode(byte[] nv21, int width, int height, int quality, OutputStream out) throws IOException {
+		mLumaDeflate.encode(nv21, width, height, out);
+	}
+
+	public void setTargetSize(int width, int height) {
+	}
+
+	public Bitmap decode(byte[] data, int offset, int length, BitmapPool pool) {
+		if (length < LumaDeflate.HEADER_LENGTH) {
+			return null;
+		}
+		int width = LumaDeflate.getWidth(data, offset);
+		int height = LumaDeflate.getHeight(data, offset);
+		if (width <= 0 || height <= 0 || width * height > MAX_PIXELS) {
+			return null;
+		}
+		if (mPixels.length < width * height) {
+			mPixels = new int[width * height];
+		}
+		try {
+			mLumaDeflate.decode(data, offset, length, mPixels);
+		} catch (DataFormatException e) {
+			Log.e(TAG, "damaged luma image", e);
+			return null;
+		}
+		Bitmap bitmap = pool.acquire(width, height);
+		bitmap.setPixels(mPixels, 0, width, 0, 0, width, height);
+		return bitmap;
+	}
+}
@@ -13,7 +13,6 @@
 
 package com.example.lilwand;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -22,6 +21,11 @@ import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -32,10 +36,7 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.ImageFormat;
-import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
@@ -44,7 +45,6 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -55,8 +55,10 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SurfaceView;
+import android.view.View;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.lilwand.R;
@@ -82,12 +84,6 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 	private BluetoothAdapter mBluetoothAdapter = null;
 	private BluetoothService mBluetoothService = null;
 
-	// Constants that indicate bluetooth header types
-	public static final byte HEADER_IMAGE = 0;
-	public static final byte HEADER_CAMERA_PARAMETERS = 2;
-	public static final byte HEADER_CONTROLLER_CMD = 1;
-	private static final byte HEADER_IMAGE_RECEIVED = 3;
-
 	// Key names received from the BluetoothService Handler
 	public static final String DEVICE_NAME = "device_name";
 	public static final String TOAST = "toast";
@@ -103,38 +99,103 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 	public static final int MESSAGE_DEVICE_NAME = 4;
 	public static final int MESSAGE_TOAST = 5;
 
-	// packet constants
-	public static final byte EOT = 0x04; // END OF TRANSMISSION BYTE
-
 	// Layout Views
 	private ActionBar mActionBar;
 	private FrameLayout mPreviewFrame;
 	private MenuItem homeMenuItem;
 	private MenuItem controlMenuItem;
 	private MenuItem connectMenuItem;
+	private MenuItem captureMenuItem;
+	private TextView mStatsOverlay;
 	
 	// Camera control variables
 	private Camera mCamera = null;
 	private SurfaceView mPreview = null;
 	private Handler mHandler;
 
-	// Image decoding variables
-	private LinkedBlockingQueue<Bitmap> mQueue;
-	Bitmap mBitmap;
+	// Image decoding variables. Decoded bitmaps are posted to the ControllerPreview, which gives
+	// them back to the pool once drawn.
+	private ControllerPreview mControllerPreview;
+	private boolean mAlignToVsync;
+	private static final int POOLED_BITMAPS = 8; // the stripes of two images
+	private final BitmapPool mBitmapPool = new BitmapPool(POOLED_BITMAPS);
+	private DecoderThread mDecoderThread;
+	private FrameCompositor mCompositor;
 
 	// Camera parameters
 	private int imgFormat = ImageFormat.NV21;
 	private int controllerImgWidth;
 	private int controllerImgHeight;
-	private int cameraImgHeight;
-	private int cameraImgWidth;
+	private volatile PreviewSize cameraImgSize; // replaced whole, the encoder thread reads it
 	private boolean cameraConfigured = false;
-
-	private boolean sendImgFlag = false;
+	// size of the controller's drawing surface, the camera streams at the smallest resolution that
+	// fills it. 0 until the controller has told us.
+	private int mViewerWidth;
+	private int mViewerHeight;
+
+	// Flow control. The controller asks for a window when it connects, until then the camera
+	// waits for each image to be acknowledged before sending the next. If every image in flight is
+	// lost the oldest one's credit comes back after CREDIT_TIMEOUT.
+	private static final long CREDIT_TIMEOUT = 2000; // ms
+	private final CreditWindow mCreditWindow = new CreditWindow(1, CREDIT_TIMEOUT);
+	private int mFlowWindow = 1;
+	private static final int DEFAULT_FLOW_WINDOW = 3;
+	private static final int MAX_FLOW_WINDOW = 4; // keep below the BluetoothService send queue capacity
 	private Timer mTimer;
-	private TimerTask mTimerTask;
-	private static final long CHECK_QUEUE_INTERVAL = 16;
-	private static final long SEND_IMAGE_INTERVAL = 32;
+
+	// Picks the JPEG quality and downscaling from the ack round trips
+	private final AdaptiveQualityController mQualityController = new AdaptiveQualityController(
+			new AdaptiveQualityController.Policy());
+	private byte[] mScaledFrame;
+
+	// Preview frames are encoded and sent off the camera callback thread. The callback only leaves
+	// the newest frame in the mailbox, the encoder picks it up once a credit is available.
+	private FrameMailbox<byte[]> mFrameMailbox;
+	private EncoderThread mEncoderThread;
+	private FrameBufferOutputStream mImageStream;
+
+	// Codecs. The controller lists the codecs it decodes when it connects. The camera picks one
+	// and the encoder thread announces it with HEADER_CODEC ahead of the first image that uses it,
+	// so the controller switches at the right place in the stream.
+	private volatile int mCodecId = FrameCodec.CODEC_JPEG; // codec the camera should use
+	private boolean mPeerDecodesLuma;
+	private boolean mPreferGrayscale;
+	private FrameCodec mEncodeCodec; // encoder thread only
+
+	// In delta mode the camera sends only the tiles that changed since the last image, with a full
+	// image every KEYFRAME_INTERVAL images, or sooner when the controller lost one and asks for it.
+	// The detector and tile rect belong to the encoder thread.
+	private volatile boolean mDeltaMode = false;
+	private volatile boolean mKeyframeRequested;
+	private static final int DELTA_TILE_SIZE = 64;
+	private static final int KEYFRAME_INTERVAL = 30;
+	private final TileDeltaDetector mDeltaDetector = new TileDeltaDetector(DELTA_TILE_SIZE, KEYFRAME_INTERVAL);
+	private final Rect mTileRect = new Rect();
+
+	// In striped mode each image is cut into horizontal bands that are compressed in parallel and
+	// sent as each one is ready. The stripe encoders belong to the encoder thread.
+	private volatile boolean mStripeMode = false;
+	private static final int MAX_STRIPES = 4;
+	private ExecutorService mStripeExecutor;
+	private ExecutorCompletionService<FrameBuffer> mStripeCompletion;
+	private StripeEncoder[] mStripeEncoders;
+
+	// The controller can ask for a full resolution picture. The camera sends it in
+	// Protocol.STILL_CHUNK_SIZE chunks that only go out when no preview image is waiting.
+	private boolean mTakingPicture; // UI thread only
+	private StillSenderThread mStillSender;
+	private int mStillId;
+	private StillAssembler mStillAssembler;
+
+	// The camera sends at most TARGET_FPS images a second, evenly spaced, and fewer if the
+	// controller is slow to hand back credits
+	private static final double TARGET_FPS = 20;
+	private final PacingScheduler mPacing = new PacingScheduler(TARGET_FPS, 1);
+
+	// Link telemetry, sampled every STATS_INTERVAL while connected
+	private static final long STATS_INTERVAL = 1000;
+	private TimerTask mStatsTimerTask;
+	private StringBuilder mStatsCsv = new StringBuilder();
 
 	// sensor variables
 	private SensorManager mSensorManager;
@@ -170,6 +231,7 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 
 		// set up the camera preview widget
 		mPreviewFrame = (FrameLayout) findViewById(R.id.camera_preview);
+		mStatsOverlay = (TextView) findViewById(R.id.stats_overlay);
 		// Get local Bluetooth adapter
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -180,9 +242,6 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 			return;
 		}
 
-		// initialize variables for bitmap decoding
-		mQueue = new LinkedBlockingQueue<Bitmap>();
-
 		// initialize sensors
 		mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
 		mAccelSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
@@ -280,28 +339,12 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		}
 	}
 
-	public void sendMessageWithHeader(byte headerType, byte[] data) {
-		// add length to header
-		byte[] header;
-		
-		if (data!=null){
-			header = concatByteArray(new byte[] { headerType }, intToByteArray(data.length));
-		}else{
-			header = concatByteArray(new byte[] {headerType}, intToByteArray(0));
-		}
-		
-		byte[] message;
-		if(data !=null){
-			message = concatByteArray(header, data);
-		}else {
-			message = header; 
-		}
-		
-		byte[] footer = { EOT }; // arbitrary stop bits
-		message = concatByteArray(message, footer);
-		if(D) Log.d(TAG, "sent " + message.length + " bytes");
+	public boolean sendMessageWithHeader(byte headerType, byte[] data) {
+		// the writer thread frames the payload as it goes out, so there's nothing to copy here
+		FrameBuffer message = FrameBuffer.wrap(headerType, data);
+		if(D) Log.d(TAG, "sent " + FrameEncoder.getPacketLength(message.getLength()) + " bytes");
 		// send message
-		sendMessage(message);
+		return sendMessage(message);
 
 	}
 
@@ -309,46 +352,132 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 	 * Sends a message.
 	 * 
 	 * @param message
-	 *            A byte array to send
+	 *            A packet to send
+	 * @return true if the packet was queued for sending
 	 */
-	private void sendMessage(byte[] message) {
+	private boolean sendMessage(FrameBuffer message) {
 		// Check that we're actually connected before trying anything
 		if (mBluetoothService.getState() != BluetoothService.STATE_CONNECTED) {
 			Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
-			return;
+			message.release();
+			return false;
 		}
 
-		// Check that there's actually something to send and that we've received a response already
-		if (message.length > 0) {
-			// Get the message bytes and tell the BluetoothService to write
-			mBluetoothService.write(message);
-		}
+		// Tell the BluetoothService to write
+		return mBluetoothService.write(message);
 	}
 
-	private void parseMessage(int messageType, int messageLength, byte[] message) {
+	private void parseMessage(FrameBuffer message) {
 		// unpack the message
 		if(D) Log.d(TAG, "parseMessage");
+		int messageType = message.getType();
 		if (mRole.get() == ROLE_CAMERA) {
-			if(messageType == HEADER_IMAGE_RECEIVED) {
-				sendImgFlag = true;
+			if (messageType == Protocol.HEADER_IMAGE_RECEIVED && message.getLength() >= 4) {
+				// the controller is done with this image and every one before it
+				int image = FrameReader.readInt(message.getData(), 0);
+				if (mCreditWindow.ack(image) > 0) {
+					long rtt = mBluetoothService.getLinkStats().recordImageAcked(image);
+					if (rtt >= 0) {
+						mQualityController.onImagesAcked(image, rtt, System.nanoTime());
+					}
+				}
+			}
+			if (messageType == Protocol.HEADER_CODEC) {
+				// the controller listed the codecs it can decode
+				mPeerDecodesLuma = false;
+				for (int i = 0; i < message.getLength(); i++) {
+					if (message.getData()[i] == FrameCodec.CODEC_LUMA_DEFLATE) {
+						mPeerDecodesLuma = true;
+					}
+				}
+				chooseCodec();
+			}
+			if (messageType == Protocol.HEADER_CAPTURE_STILL) {
+				takeStill();
+			}
+			if (messageType == Protocol.HEADER_KEYFRAME_REQUEST) {
+				// the controller lost an image, its deltas are no good until it has a whole one
+				mKeyframeRequested = true;
+			}
+			if (messageType == Protocol.HEADER_VIEWER_SIZE && message.getLength() >= 8) {
+				// the controller's surface changed, restream at a resolution that suits it
+				ByteBuffer b = ByteBuffer.wrap(message.getData(), 0, message.getLength());
+				mViewerWidth = b.getInt();
+				mViewerHeight = b.getInt();
+				if(D) Log.d(TAG, "viewer size " + mViewerWidth + "x" + mViewerHeight);
+				if (mPreview instanceof CameraPreview) {
+					((CameraPreview) mPreview).restartPreview();
+				}
+			}
+			if (messageType == Protocol.HEADER_FLOW_CONTROL && message.getLength() >= 4) {
+				// the controller asked for a window, agree to as much of it as we allow
+				int window = FrameReader.readInt(message.getData(), 0);
+				mFlowWindow = Math.max(1, Math.min(window, MAX_FLOW_WINDOW));
+				mCreditWindow.reset(mFlowWindow);
+				if(D) Log.d(TAG, "flow control window " + mFlowWindow);
+				sendMessageWithHeader(Protocol.HEADER_FLOW_CONTROL, ByteBuffer.allocate(4).putInt(mFlowWindow).array());
 			}
 		}
 
 		else if (mRole.get() == ROLE_CONTROLLER) {
-			if (messageType == HEADER_CAMERA_PARAMETERS) {
-				ByteBuffer b = ByteBuffer.wrap(message);
+			if (messageType == Protocol.HEADER_FLOW_CONTROL && message.getLength() >= 4) {
+				// the camera confirmed how many images it will keep in flight
+				mFlowWindow = FrameReader.readInt(message.getData(), 0);
+				if(D) Log.d(TAG, "flow control window " + mFlowWindow);
+			}
+			if (messageType == Protocol.HEADER_STILL_CHUNK) {
+				onStillChunk(message);
+			}
+			if (messageType == Protocol.HEADER_CAMERA_PARAMETERS) {
+				ByteBuffer b = ByteBuffer.wrap(message.getData(), 0, message.getLength());
 				int width = b.getInt();
 				int height = b.getInt();
 				setControllerImageSize(width, height);
 			}
-			if (messageType == HEADER_IMAGE) {
+			if ((Protocol.isImage(messageType) && message.getLength() >= Protocol.IMAGE_HEADER_LENGTH)
+					|| (messageType == Protocol.HEADER_IMAGE_STRIPE && message.getLength() >= Protocol.STRIPE_HEADER_LENGTH)
+					|| messageType == Protocol.HEADER_CODEC) {
 				// if(D) Log.d(TAG,"parseMessage - image received");
-				// execute worker task to decode image
-
-				new DecodeBitmapTask().execute(message);
+				// decode in order on the decoder thread, which releases the buffer when it's done
+				mDecoderThread.decode(message);
+				return;
 			}
 		}
+		message.release();
+
+	}
+
+	/**
+	 * Write the telemetry collected this session to a CSV file next to the captured images.
+	 */
+	private void saveStats() {
+		String csv;
+		synchronized (mStatsCsv) {
+			csv = mStatsCsv.toString();
+		}
+		String fn = "linkstats-" + System.currentTimeMillis() + ".csv";
+		writeToFile(csv.getBytes(), fn);
+		Toast.makeText(this, "Saved " + fn, Toast.LENGTH_SHORT).show();
+	}
 
+	/**
+	 * Add a chunk of a picture from the camera, showing progress in the action bar and saving the
+	 * picture once it is complete.
+	 */
+	private void onStillChunk(FrameBuffer message) {
+		int result = mStillAssembler.onChunk(message.getData(), message.getLength());
+		if (result == StillAssembler.RESULT_IN_PROGRESS) {
+			mActionBar.setSubtitle(getString(R.string.receiving_still, mStillAssembler.getProgress()));
+			return;
+		}
+		mActionBar.setSubtitle(mConnectedDeviceName);
+		if (result == StillAssembler.RESULT_COMPLETE) {
+			String fn = "still-" + System.currentTimeMillis() + ".jpg";
+			writeToFile(mStillAssembler.getStill(), fn);
+			Toast.makeText(this, "Saved " + fn, Toast.LENGTH_SHORT).show();
+		} else {
+			Toast.makeText(this, R.string.still_failed, Toast.LENGTH_SHORT).show();
+		}
 	}
 
 	private void writeToFile(byte[] img, String fn) {
@@ -427,6 +556,7 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		connectMenuItem = menu.findItem(R.id.connect);
 		homeMenuItem = menu.findItem(R.id.home);
 		controlMenuItem = menu.findItem(R.id.control);
+		captureMenuItem = menu.findItem(R.id.capture);
 		return true;
 	}
 
@@ -466,6 +596,44 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		case R.id.control:
 			// enable sending control commands
 			return true;
+		case R.id.capture:
+			// ask the camera for a full resolution picture
+			sendMessageWithHeader(Protocol.HEADER_CAPTURE_STILL, new byte[0]);
+			return true;
+		case R.id.stats:
+			// toggle the telemetry overlay
+			item.setChecked(!item.isChecked());
+			mStatsOverlay.setVisibility(item.isChecked() ? View.VISIBLE : View.GONE);
+			return true;
+		case R.id.save_stats:
+			saveStats();
+			return true;
+		case R.id.grayscale:
+			// toggle the cheap grayscale codec, takes effect when we are the camera and the
+			// controller can decode it
+			item.setChecked(!item.isChecked());
+			mPreferGrayscale = item.isChecked();
+			chooseCodec();
+			return true;
+		case R.id.vsync:
+			// toggle holding each image until the next display refresh, takes effect when we are
+			// the controller
+			item.setChecked(!item.isChecked());
+			mAlignToVsync = item.isChecked();
+			if (mControllerPreview != null) {
+				mControllerPreview.setAlignToVsync(mAlignToVsync);
+			}
+			return true;
+		case R.id.stripes:
+			// toggle compressing each image as parallel stripes, takes effect when we are the camera
+			item.setChecked(!item.isChecked());
+			mStripeMode = item.isChecked();
+			return true;
+		case R.id.delta:
+			// toggle sending only the changed tiles of each image, takes effect when we are the camera
+			item.setChecked(!item.isChecked());
+			mDeltaMode = item.isChecked();
+			return true;
 		case R.id.home:
 			// command tripod to return home
 			grabInitAngles = true;
@@ -488,8 +656,23 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 			return;
 		}
 
+		// start the encoder before the preview delivers any frames
+		mFrameMailbox = new FrameMailbox<byte[]>();
+		mImageStream = new FrameBufferOutputStream(mBluetoothService.getFramePool());
+		mEncodeCodec = null;
+		int stripes = Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors());
+		mStripeExecutor = Executors.newFixedThreadPool(stripes);
+		mStripeCompletion = new ExecutorCompletionService<FrameBuffer>(mStripeExecutor);
+		mStripeEncoders = new StripeEncoder[stripes];
+		for (int i = 0; i < stripes; i++) {
+			mStripeEncoders[i] = new StripeEncoder(new FrameBufferOutputStream(mBluetoothService.getFramePool()));
+		}
+		CameraPreview preview = new CameraPreview(this, mCamera);
+		mEncoderThread = new EncoderThread(preview, mFrameMailbox);
+		mEncoderThread.start();
+
 		// Create preview view and set it as content of our activity
-		mPreview = new CameraPreview(this, mCamera);
+		mPreview = preview;
 		mPreviewFrame.addView(mPreview);
 
 	}
@@ -497,9 +680,25 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 	private void stopPreviewAndReleaseCamera() {
 		if (mCamera != null) {
 			mCamera.stopPreview();
+			mTakingPicture = false;
+			if (mStillSender != null) {
+				mStillSender.cancel();
+				mStillSender = null;
+			}
+
+			// the encoder hands buffers back to the camera, so it must be gone before the release
+			mEncoderThread.cancel();
+			mEncoderThread = null;
+			mImageStream.close();
+			mImageStream = null;
+			mFrameMailbox = null;
+			mStripeExecutor.shutdownNow();
+			mStripeExecutor = null;
+			mStripeCompletion = null;
+			mStripeEncoders = null;
 
 			// remove preview callback
-			mCamera.setPreviewCallback(null);
+			mCamera.setPreviewCallbackWithBuffer(null);
 
 			// release preview from framelayout
 			mPreviewFrame.removeView(mPreview);
@@ -508,28 +707,254 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		}
 	}
 
-	public synchronized void raiseSendImgFlag() {
-		sendImgFlag = true;
+	/**
+	 * Take a picture at the camera's largest picture size and start sending it to the controller.
+	 * Only one picture is taken or sent at a time.
+	 */
+	private void takeStill() {
+		if (mCamera == null || mTakingPicture || (mStillSender != null && mStillSender.isAlive())) {
+			if(D) Log.d(TAG, "still capture already in progress");
+			return;
+		}
+		Camera.Parameters parameters = mCamera.getParameters();
+		Camera.Size largest = null;
+		for (Camera.Size size : parameters.getSupportedPictureSizes()) {
+			if (largest == null || size.width * size.height > largest.width * largest.height) {
+				largest = size;
+			}
+		}
+		if (largest != null) {
+			parameters.setPictureSize(largest.width, largest.height);
+			mCamera.setParameters(parameters);
+		}
+
+		mTakingPicture = true;
+		mCamera.takePicture(null, null, new Camera.PictureCallback() {
+			public void onPictureTaken(byte[] data, Camera camera) {
+				if (camera != mCamera) {
+					// the camera was released while the picture was taken
+					return;
+				}
+				mTakingPicture = false;
+				// taking a picture stops the preview
+				camera.startPreview();
+				mStillSender = new StillSenderThread(data, ++mStillId);
+				mStillSender.start();
+			}
+		});
 	}
 
-	
 	public void onPreviewFrame(byte[] data, Camera camera) {
 
 		// Log.d(TAG, "onPreviewFrame - sending preview frame");
 
-		// if the camera has been configured and response received, send another image
-		if (cameraConfigured && sendImgFlag) {
-			ByteArrayOutputStream outstr = new ByteArrayOutputStream();
-			Rect rect = new Rect(0, 0, cameraImgWidth, cameraImgHeight);
-			YuvImage yuvimage = new YuvImage(data, imgFormat, cameraImgWidth, cameraImgHeight, null);
-			yuvimage.compressToJpeg(rect, 30, outstr);
+		// leave the newest frame for the encoder, the frame it replaces goes straight back to the camera
+		byte[] stale = data;
+		if (cameraConfigured && mFrameMailbox != null) {
+			stale = mFrameMailbox.publish(data);
+			if (stale != null) {
+				mBluetoothService.getLinkStats().recordDropped(LinkStats.STAGE_CAPTURE, 1);
+			}
+		}
+		if (stale != null && mPreview instanceof CameraPreview) {
+			((CameraPreview) mPreview).returnBuffer(stale);
+		}
+	}
+
+	// Encode a preview frame of the given size and queue it as the given image number, the frame
+	// buffer belongs to the camera
+	private void sendPreviewFrame(byte[] data, PreviewSize frameSize, int image) throws InterruptedException {
+		long start = System.nanoTime();
+		int quality = mQualityController.getQuality();
+		int divisor = mQualityController.getScaleDivisor();
+		int width = frameSize.width;
+		int height = frameSize.height;
+		if (divisor > 1) {
+			width = Nv21.getScaledSize(frameSize.width, divisor);
+			height = Nv21.getScaledSize(frameSize.height, divisor);
+			int size = Nv21.getFrameSize(width, height);
+			if (mScaledFrame == null || mScaledFrame.length < size) {
+				mScaledFrame = new byte[size];
+			}
+			Nv21.downscale(data, frameSize.width, frameSize.height, divisor, mScaledFrame);
+			data = mScaledFrame;
+		}
 
-			byte[] img = outstr.toByteArray();
-			if(D) Log.d(TAG, "onPreviewFrame: compressed " + data.length + " to " + img.length);
-			sendMessageWithHeader(HEADER_IMAGE, img);
+		int codecId = mCodecId;
+		if (mEncodeCodec == null || mEncodeCodec.getId() != codecId) {
+			// tell the controller before the first image it has to decode differently
+			if (!mBluetoothService.write(FrameBuffer.wrap(Protocol.HEADER_CODEC, new byte[] { (byte) codecId }))) {
+				// the controller would decode this image with the old codec, skip it and try again
+				// with the next one
+				mEncodeCodec = null;
+				mCreditWindow.abandon(image);
+				return;
+			}
+			mEncodeCodec = createCodec(codecId);
+			mDeltaDetector.invalidate();
+		}
+		if (mKeyframeRequested) {
+			mKeyframeRequested = false;
+			mDeltaDetector.invalidate();
+		}
 
-			sendImgFlag = false;
+		if (mStripeMode && codecId == FrameCodec.CODEC_JPEG) {
+			sendStripedImage(new YuvImage(data, imgFormat, width, height, null), image, width, height, quality, start);
+			mDeltaDetector.invalidate();
+			return;
+		}
 
+		// send a delta unless a keyframe is due or so much changed that a full image is cheaper.
+		// Tiles are JPEGs, so deltas only go with the JPEG codec.
+		boolean delta = mDeltaMode && codecId == FrameCodec.CODEC_JPEG && !mDeltaDetector.isKeyframeDue(width, height)
+				&& mDeltaDetector.detect(data) <= mDeltaDetector.getTileCount() / 2;
+		if (delta) {
+			writeDeltaImage(new YuvImage(data, imgFormat, width, height, null), image, width, height, quality);
+		} else {
+			mImageStream.begin(Protocol.HEADER_IMAGE);
+			mImageStream.writeInt(image);
+			try {
+				mEncodeCodec.encode(data, width, height, quality, mImageStream);
+			} catch (IOException e) {
+				Log.e(TAG, "encoding failed", e);
+				mImageStream.close();
+				mCreditWindow.abandon(image);
+				return;
+			}
+		}
+		mBluetoothService.getLinkStats().recordEncodeTime(System.nanoTime() - start);
+
+		// the image is written to the link straight from this buffer
+		FrameBuffer img = mImageStream.finish();
+		int length = img.getLength();
+		if(D) Log.d(TAG, "onPreviewFrame: compressed " + width + "x" + height + " at quality " + quality + " to " + length);
+		// write directly, this runs on the encoder thread so there must be no toast
+		if (mBluetoothService.write(img)) {
+			mQualityController.onImageSent(image, length);
+			// the controller now shows what we sent
+			if (delta) {
+				mDeltaDetector.commitChangedTiles(data);
+			} else if (mDeltaMode) {
+				mDeltaDetector.commitKeyframe(data, width, height);
+			} else {
+				mDeltaDetector.invalidate();
+			}
+		} else {
+			// the image never made it onto the link, so it won't be acknowledged
+			mCreditWindow.abandon(image);
+			mDeltaDetector.invalidate();
+		}
+	}
+
+	// Compress the stripes of an image in parallel and send each as soon as it is ready
+	private void sendStripedImage(YuvImage yuvimage, int image, int width, int height, int quality, long start)
+			throws InterruptedException {
+		// bands are a multiple of 16 rows so they line up with JPEG blocks
+		int stripeHeight = ((height + mStripeEncoders.length - 1) / mStripeEncoders.length + 15) / 16 * 16;
+		int count = (height + stripeHeight - 1) / stripeHeight;
+		for (int i = 0; i < count; i++) {
+			int top = i * stripeHeight;
+			mStripeEncoders[i].set(yuvimage, image, i, count, top, Math.min(height, top + stripeHeight), quality);
+			mStripeCompletion.submit(mStripeEncoders[i]);
+		}
+
+		int sent = 0;
+		int length = 0;
+		int done = 0;
+		try {
+			for (; done < count; done++) {
+				FrameBuffer stripe;
+				try {
+					stripe = mStripeCompletion.take().get();
+				} catch (ExecutionException e) {
+					Log.e(TAG, "stripe encoding failed", e.getCause());
+					continue;
+				}
+				length += stripe.getLength();
+				if (mBluetoothService.write(stripe)) {
+					sent++;
+				}
+			}
+		} finally {
+			if (done < count) {
+				// interrupted, the stripes still being compressed read the camera's buffer, so they
+				// must be finished with it before it goes back
+				abandonStripes(count - done);
+			}
+		}
+		mBluetoothService.getLinkStats().recordEncodeTime(System.nanoTime() - start);
+		if(D) Log.d(TAG, "sent " + sent + " of " + count + " stripes of " + width + "x" + height + ", " + length + " bytes");
+
+		if (sent > 0) {
+			mQualityController.onImageSent(image, length);
+		} else {
+			// nothing reached the link, so the image won't be acknowledged
+			mCreditWindow.abandon(image);
+		}
+	}
+
+	// Stop the stripe encoders that haven't started and wait for the given number of stripes to
+	// come back, throwing their packets away
+	private void abandonStripes(int pending) {
+		for (StripeEncoder encoder : mStripeEncoders) {
+			encoder.cancel();
+		}
+		boolean interrupted = false;
+		while (pending > 0) {
+			try {
+				FrameBuffer stripe = mStripeCompletion.take().get();
+				if (stripe != null) {
+					stripe.release();
+				}
+				pending--;
+			} catch (ExecutionException e) {
+				pending--;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Return a new codec for a FrameCodec.CODEC_ id, or null if we don't have it
+	private static FrameCodec createCodec(int id) {
+		switch (id) {
+		case FrameCodec.CODEC_JPEG:
+			return new JpegCodec();
+		case FrameCodec.CODEC_LUMA_DEFLATE:
+			return new LumaDeflateCodec();
+		}
+		return null;
+	}
+
+	// Pick the codec the camera encodes with from the user's choice and what the controller decodes
+	private void chooseCodec() {
+		mCodecId = mPreferGrayscale && mPeerDecodesLuma ? FrameCodec.CODEC_LUMA_DEFLATE : FrameCodec.CODEC_JPEG;
+		if(D) Log.d(TAG, "codec " + mCodecId);
+	}
+
+	// Write the tiles found by the delta detector as a HEADER_IMAGE_DELTA packet
+	private void writeDeltaImage(YuvImage yuvimage, int image, int width, int height, int quality) {
+		int count = mDeltaDetector.getChangedCount();
+		mImageStream.begin(Protocol.HEADER_IMAGE_DELTA);
+		mImageStream.writeInt(image);
+		mImageStream.writeInt(width);
+		mImageStream.writeInt(height);
+		mImageStream.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			int tile = mDeltaDetector.getChangedTile(i);
+			int left = mDeltaDetector.getTileLeft(tile);
+			int top = mDeltaDetector.getTileTop(tile);
+			mImageStream.writeShort(left);
+			mImageStream.writeShort(top);
+			// the JPEG length is filled in once the tile is compressed
+			int lengthPosition = mImageStream.size();
+			mImageStream.writeInt(0);
+			mTileRect.set(left, top, left + mDeltaDetector.getTileWidth(tile), top + mDeltaDetector.getTileHeight(tile));
+			yuvimage.compressToJpeg(mTileRect, quality, mImageStream);
+			mImageStream.setInt(lengthPosition, mImageStream.size() - lengthPosition - 4);
 		}
 	}
 
@@ -559,9 +984,36 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		controllerImgHeight = (int) (scale * height);
 	}
 
+	public int getControllerImageWidth() {
+		return controllerImgWidth;
+	}
+
+	public int getControllerImageHeight() {
+		return controllerImgHeight;
+	}
+
+	public int getViewerWidth() {
+		return mViewerWidth;
+	}
+
+	public int getViewerHeight() {
+		return mViewerHeight;
+	}
+
+	/**
+	 * Tell the camera the size of the surface we draw its images on.
+	 */
+	public void setViewerSize(int width, int height) {
+		if (width == mViewerWidth && height == mViewerHeight) {
+			return;
+		}
+		mViewerWidth = width;
+		mViewerHeight = height;
+		sendMessageWithHeader(Protocol.HEADER_VIEWER_SIZE, ByteBuffer.allocate(8).putInt(width).putInt(height).array());
+	}
+
 	public void setCameraImageSize(int width, int height) {
-		cameraImgWidth = width;
-		cameraImgHeight = height;
+		cameraImgSize = new PreviewSize(width, height);
 		cameraConfigured = true;
 	}
 
@@ -608,7 +1060,7 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 					break;
 				case MESSAGE_READ:
 					// Log.d(TAG, "handleMessage - READ");
-					activity.parseMessage((int) msg.arg1, (int) msg.arg2, (byte[]) msg.obj);
+					activity.parseMessage((FrameBuffer) msg.obj);
 					break;
 				case MESSAGE_DEVICE_NAME:
 					// save the connected device's name
@@ -630,114 +1082,538 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		}
 	};
 
-	// Async worker task to decode byte array into bitmap and add to queue
-	// TODO: maybe this should be another thread with a Handler to post to the
-	// queue? or lock orientation so activity doesn't get destroyed
-	private class DecodeBitmapTask extends AsyncTask<byte[], Void, Bitmap> {
-		
+	/**
+	 * Decodes whole and delta images one at a time, in the order they arrived, and posts each
+	 * decoded bitmap to the ControllerPreview. From then on the bitmap belongs to the preview,
+	 * which gives it back to mBitmapPool once it has been drawn. HEADER_CODEC packets
+	 * come through here too, so a codec change takes effect at the right image. The codec and the
+	 * compositor belong to this thread.
+	 *
+	 * When decoding falls behind, a whole or delta image with a newer whole image queued behind it
+	 * is dropped undecoded: only the newest image would be shown anyway. It is only counted, the
+	 * ack for the image that superseded it covers it as well.
+	 *
+	 * Stripes are decoded in parallel, like the camera compresses them, by one StripeDecoder per
+	 * worker of a small executor, each with its own codec. Stripe n goes to decoder n modulo their
+	 * number and decoders are posted to the preview strictly in turn, so stripes reach the preview
+	 * and the StripeTracker in the order they arrived.
+	 */
+	private class DecoderThread extends Thread {
+		private final LinkedBlockingQueue<FrameBuffer> mmPackets = new LinkedBlockingQueue<FrameBuffer>();
+		private final AtomicInteger mmQueuedKeyframes = new AtomicInteger(); // HEADER_IMAGEs in mmPackets
+		private final ControllerPreview mmPreview;
+		private FrameCodec mmCodec = new JpegCodec();
+		private boolean mmDecoded; // an image has been through here
+		private int mmLastImage; // number of that image
+		private boolean mmKeyframeRequested; // since the last full image
+
+		private final ExecutorService mmStripeExecutor;
+		private final StripeDecoder[] mmStripeDecoders;
+		private final Object mmStripeLock = new Object();
+		private final StripeTracker mmStripeTracker = new StripeTracker(); // guarded by mmStripeLock
+		private long mmStripesStarted; // this thread only
+		private long mmStripesPosted; // guarded by mmStripeLock
+
+		public DecoderThread(ControllerPreview preview) {
+			super("DecoderThread");
+			mmPreview = preview;
+			int decoders = Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors());
+			mmStripeExecutor = Executors.newFixedThreadPool(decoders);
+			mmStripeDecoders = new StripeDecoder[decoders];
+			for (int i = 0; i < decoders; i++) {
+				mmStripeDecoders[i] = new StripeDecoder();
+			}
+		}
+
+		/**
+		 * Queue an image, stripe or codec packet, the thread releases it when it's done.
+		 */
+		public void decode(FrameBuffer packet) {
+			if (packet.getType() == Protocol.HEADER_IMAGE) {
+				mmQueuedKeyframes.incrementAndGet();
+			}
+			mmPackets.add(packet);
+		}
 
 		@Override
-		protected void onPreExecute() {
-			// while we're in the ui thread, get the frame width and height
-			super.onPreExecute();
+		public void run() {
+			try {
+				while (true) {
+					FrameBuffer packet = mmPackets.take();
+					if (packet.getType() == Protocol.HEADER_IMAGE) {
+						mmQueuedKeyframes.decrementAndGet();
+					}
+					if (Protocol.isImage(packet.getType()) && mmQueuedKeyframes.get() > 0) {
+						// superseded by a whole image that has already arrived
+						mBluetoothService.getLinkStats().recordDropped(LinkStats.STAGE_RENDER, 1);
+						packet.release();
+						continue;
+					}
+					if (packet.getType() == Protocol.HEADER_IMAGE_STRIPE) {
+						// the stripe decoder releases it
+						startStripe(packet);
+						continue;
+					}
+					try {
+						// anything after the stripes is drawn after them
+						awaitStripes();
+						if (packet.getType() == Protocol.HEADER_CODEC) {
+							setCodec(packet);
+						} else {
+							decodeImage(packet);
+						}
+					} finally {
+						// hand the buffer back to the pool
+						packet.release();
+					}
+				}
+			} catch (InterruptedException e) {
+				if(D) Log.d(TAG, "decoder interrupted");
+			}
+			FrameBuffer packet;
+			while ((packet = mmPackets.poll()) != null) {
+				packet.release();
+			}
+			// stripes being decoded finish and release their packets
+			mmStripeExecutor.shutdown();
 		}
 
-		protected Bitmap doInBackground(byte[]... imgList) {
-			for (byte[] img : imgList) {
+		// images from here on are encoded with this codec
+		private void setCodec(FrameBuffer packet) {
+			if (packet.getLength() == 0) {
+				return;
+			}
+			FrameCodec codec = createCodec(packet.getData()[0]);
+			if (codec != null) {
+				mmCodec = codec;
+			} else {
+				Log.e(TAG, "camera uses unknown codec " + packet.getData()[0]);
+			}
+		}
+
+		private void decodeImage(FrameBuffer img) {
+			if(D) Log.d(TAG, "decoding byte array of :" + img.getLength() + "bytes");
+			int image = Protocol.getImageNumber(img);
+			int offset = Protocol.IMAGE_HEADER_LENGTH;
+			int length = img.getLength() - offset;
+			onImageNumber(image);
+
+			Bitmap bitmap = null;
+			boolean unchanged = false;
+			long start = System.nanoTime();
+			try {
+				if (img.getType() == Protocol.HEADER_IMAGE_DELTA) {
+					// draw the changed tiles over the last image
+					int tiles = mCompositor.applyDelta(img.getData(), offset, length);
+					unchanged = tiles == 0;
+					bitmap = tiles > 0 ? mCompositor.copyFrame(mBitmapPool) : null;
+					if (tiles < 0 && !mmKeyframeRequested) {
+						// nothing to draw on until the camera sends a whole image, ask for one once
+						mmKeyframeRequested = true;
+						mBluetoothService.write(FrameBuffer.wrap(Protocol.HEADER_KEYFRAME_REQUEST, new byte[0]));
+					}
+				} else {
+					// decode no bigger than needed to fill the image area
+					mmCodec.setTargetSize(controllerImgWidth, controllerImgHeight);
+					bitmap = mmCodec.decode(img.getData(), offset, length, mBitmapPool);
+					mCompositor.setKeyframe(bitmap);
+					mmKeyframeRequested = false;
+				}
+				mBluetoothService.getLinkStats().recordDecodeTime(System.nanoTime() - start);
+			} catch (RuntimeException e) {
+				// a damaged delta
+				Log.e(TAG, "decoding failed", e);
+			}
+
+			// the image has been consumed either way, so hand its credit back to the camera along with
+			// those of any images lost or skipped before it
+			acknowledge(image);
+			if (unchanged) {
+				if(D) Log.d(TAG, "Delta image without changes.");
+			} else if (bitmap == null) {
+				if(D) Log.d(TAG, "Decoding failed.");
+				mBluetoothService.getLinkStats().recordDropped(LinkStats.STAGE_DECODE, 1);
+			} else {
+				// post it to the renderer
+				mmPreview.postFrame(bitmap);
+			}
+		}
+
+		// Hand a stripe to the next stripe decoder, once it has posted its last one
+		private void startStripe(FrameBuffer stripe) throws InterruptedException {
+			ByteBuffer b = ByteBuffer.wrap(stripe.getData(), 0, stripe.getLength());
+			int image = b.getInt();
+			b.get(); // stripe index
+			int count = b.get();
+			int top = b.getShort();
+			int imageWidth = b.getShort();
+			if (image != mmLastImage || !mmDecoded) {
+				onImageNumber(image);
+				// deltas are drawn over the last whole image, which is older than this one
+				mCompositor.invalidate();
+			}
+
+			StripeDecoder decoder = mmStripeDecoders[(int) (mmStripesStarted % mmStripeDecoders.length)];
+			synchronized (mmStripeLock) {
 				try {
-					if(D) Log.d(TAG, "decoding byte array of :" + img.length + "bytes");
-					// Set bitmap factory options
-					BitmapFactory.Options options = new BitmapFactory.Options();
-					options.inPreferQualityOverSpeed = false;
-					options.inDither = false;
-					options.inJustDecodeBounds = false;
-
-					// Decode bitmap
-					mBitmap = BitmapFactory.decodeByteArray(img, 0, img.length, options);
-
-				} catch (Exception e) {
-					e.printStackTrace();
+					while (decoder.mmBusy) {
+						mmStripeLock.wait();
+					}
+				} catch (InterruptedException e) {
+					stripe.release();
+					throw e;
 				}
-				if (isCancelled())
+				decoder.mmBusy = true;
+			}
+			decoder.set(stripe, image, count, top, imageWidth);
+			mmStripesStarted++;
+			mmStripeExecutor.execute(decoder);
+		}
+
+		// Wait until every stripe started has been posted
+		private void awaitStripes() throws InterruptedException {
+			synchronized (mmStripeLock) {
+				while (mmStripesPosted != mmStripesStarted) {
+					mmStripeLock.wait();
+				}
+			}
+		}
+
+		// Post the stripes that have been decoded, as long as they are next in turn. Called with
+		// mmStripeLock held, by whichever stripe decoder finishes.
+		private void postStripes() {
+			while (true) {
+				StripeDecoder decoder = mmStripeDecoders[(int) (mmStripesPosted % mmStripeDecoders.length)];
+				if (!decoder.mmBusy || !decoder.mmDone) {
 					break;
+				}
+				decoder.post();
+				decoder.mmBusy = false;
+				decoder.mmDone = false;
+				mmStripesPosted++;
 			}
-			return mBitmap;
+			mmStripeLock.notifyAll();
 		}
 
-		protected void onPostExecute(Bitmap bm) {
-			if (bm == null) {
-				if(D) Log.d(TAG, "Decoding failed.");
-			} else {
-				if(D) Log.d(TAG, "Successfully decoded image.");
-				
-				sendMessageWithHeader(HEADER_IMAGE_RECEIVED, null);
-				// post it to the queue
-				mQueue.add(bm);
+		// note the number of an image about to be decoded
+		private void onImageNumber(int image) {
+			if (mmDecoded && image != mmLastImage + 1) {
+				// images were lost on the link or skipped unread, the frame the next delta would be
+				// drawn over is missing them
+				mCompositor.invalidate();
+			}
+			mmDecoded = true;
+			mmLastImage = image;
+		}
+
+		private void acknowledge(int image) {
+			mBluetoothService.write(FrameBuffer.wrap(Protocol.HEADER_IMAGE_RECEIVED, ByteBuffer.allocate(4).putInt(image)
+					.array()));
+		}
+
+		/**
+		 * Stop the thread and wait for it to finish the image it is decoding.
+		 */
+		public void cancel() {
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Decodes one stripe at a time on the stripe executor, into a bitmap from mBitmapPool.
+		 */
+		private class StripeDecoder implements Runnable {
+			private final JpegCodec mmCodec = new JpegCodec(); // full size, a stripe's rows must stay put
+			private FrameBuffer mmStripe;
+			private int mmImage;
+			private int mmCount;
+			private int mmTop;
+			private int mmImageWidth;
+			private Bitmap mmBitmap;
+			boolean mmBusy; // from being started until posted, guarded by mmStripeLock
+			boolean mmDone; // decoded, guarded by mmStripeLock
+
+			void set(FrameBuffer stripe, int image, int count, int top, int imageWidth) {
+				mmStripe = stripe;
+				mmImage = image;
+				mmCount = count;
+				mmTop = top;
+				mmImageWidth = imageWidth;
+			}
+
+			public void run() {
+				Bitmap bitmap = null;
+				long start = System.nanoTime();
+				try {
+					bitmap = mmCodec.decode(mmStripe.getData(), Protocol.STRIPE_HEADER_LENGTH, mmStripe.getLength()
+							- Protocol.STRIPE_HEADER_LENGTH, mBitmapPool);
+					mBluetoothService.getLinkStats().recordDecodeTime(System.nanoTime() - start);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "decoding stripe failed", e);
+				} finally {
+					// hand the buffer back to the pool
+					mmStripe.release();
+					mmStripe = null;
+				}
+				synchronized (mmStripeLock) {
+					mmBitmap = bitmap;
+					mmDone = true;
+					postStripes();
+				}
+			}
+
+			// Acknowledge and draw the stripe, in turn with the others
+			void post() {
+				// an image that lost a stripe on the link is acknowledged when the next one starts
+				int previous = mmStripeTracker.getImage();
+				if (mmStripeTracker.onStripeReceived(mmImage, mmCount) > 0) {
+					acknowledge(previous);
+				}
+				boolean complete = mmStripeTracker.onStripeDecoded(mmImage);
+				if (complete) {
+					// all of the image's stripes have been through here, hand its credit back
+					acknowledge(mmImage);
+				}
+				if (mmBitmap == null || mmImageWidth <= 0) {
+					if(D) Log.d(TAG, "Decoding stripe failed.");
+					mBluetoothService.getLinkStats().recordDropped(LinkStats.STAGE_DECODE, 1);
+					mBitmapPool.release(mmBitmap);
+				} else {
+					// the image counts as drawn with its last stripe
+					mmPreview.postStripe(mmBitmap, mmTop, mmImageWidth, complete);
+				}
+				mmBitmap = null;
 			}
 		}
 	}
 
-	private class CheckQueueTimerTask extends TimerTask {
+	/**
+	 * Compresses one stripe of an image on the stripe executor. Each encoder has its own stream,
+	 * so the stripes of an image are written in parallel.
+	 */
+	private static class StripeEncoder implements Callable<FrameBuffer> {
+		private final FrameBufferOutputStream mmStream;
+		private final Rect mmRect = new Rect();
+		private YuvImage mmImage;
+		private int mmImageNumber;
+		private int mmStripe;
+		private int mmCount;
+		private int mmQuality;
+		private volatile boolean mmCancelled;
+
+		public StripeEncoder(FrameBufferOutputStream stream) {
+			mmStream = stream;
+		}
+
+		public void set(YuvImage image, int imageNumber, int stripe, int count, int top, int bottom, int quality) {
+			mmImage = image;
+			mmImageNumber = imageNumber;
+			mmStripe = stripe;
+			mmCount = count;
+			mmRect.set(0, top, image.getWidth(), bottom);
+			mmQuality = quality;
+			mmCancelled = false;
+		}
+
+		/**
+		 * Skip the stripe if it hasn't started yet. A stripe being compressed is finished.
+		 */
+		public void cancel() {
+			mmCancelled = true;
+		}
+
+		public FrameBuffer call() {
+			if (mmCancelled) {
+				return null;
+			}
+			mmStream.begin(Protocol.HEADER_IMAGE_STRIPE);
+			mmStream.writeInt(mmImageNumber);
+			mmStream.write(mmStripe);
+			mmStream.write(mmCount);
+			mmStream.writeShort(mmRect.top);
+			mmStream.writeShort(mmImage.getWidth());
+			mmStream.writeShort(mmImage.getHeight());
+			mmImage.compressToJpeg(mmRect, mmQuality, mmStream);
+			return mmStream.finish();
+		}
+	}
+
+	/**
+	 * Encodes and sends preview frames. It waits for its turn at the target frame rate, then for a
+	 * credit, and only then takes a frame from the mailbox, so the frame sent is the newest one the
+	 * camera has delivered.
+	 */
+	private class EncoderThread extends Thread {
+		private final CameraPreview mmPreview;
+		private final FrameMailbox<byte[]> mmMailbox;
+
+		public EncoderThread(CameraPreview preview, FrameMailbox<byte[]> mailbox) {
+			super("EncoderThread");
+			mmPreview = preview;
+			mmMailbox = mailbox;
+		}
 
 		@Override
 		public void run() {
 			try {
-				if (!mQueue.isEmpty()) {
-					Bitmap bm = mQueue.remove();
-					if(D)Log.d(TAG, "Pulling bitmap from queue");
+				while (true) {
+					mPacing.acquire();
+					int image = mCreditWindow.acquire();
+					byte[] frame = mmMailbox.take();
+					if (frame == null) {
+						// closed
+						mCreditWindow.abandon(image);
+						break;
+					}
+					// the camera's buffers fit the preview size exactly, a frame of any other length is
+					// left over from before the size changed and the camera has new buffers
+					PreviewSize size = cameraImgSize;
+					if (frame.length != Nv21.getFrameSize(size.width, size.height)) {
+						mCreditWindow.abandon(image);
+						continue;
+					}
+					try {
+						sendPreviewFrame(frame, size, image);
+					} finally {
+						mmPreview.returnBuffer(frame);
+					}
+				}
+			} catch (InterruptedException e) {
+				if(D) Log.d(TAG, "encoder interrupted");
+			}
+		}
 
-					// lock canvas
-					Canvas canvas = mPreview.getHolder().lockCanvas();
+		/**
+		 * Stop the thread and wait for it to finish with the frame it is encoding.
+		 */
+		public void cancel() {
+			mmMailbox.close();
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The width and height of the preview frames, published together so a thread that reads them
+	 * never sees the width of one size and the height of another.
+	 */
+	private static final class PreviewSize {
+		final int width;
+		final int height;
 
-					// draw to canvas
-					Bitmap scaled = Bitmap.createScaledBitmap(bm, controllerImgWidth, controllerImgHeight, false);
-					int centerX = (canvas.getWidth() - controllerImgWidth) / 2;
-					int centerY = (canvas.getHeight() - controllerImgHeight) / 2;
-					canvas.drawBitmap(scaled, centerX, centerY, new Paint());
+		PreviewSize(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+	}
 
-					// unlock canvas and post
-					mPreview.getHolder().unlockCanvasAndPost(canvas);
+	/**
+	 * Sends a picture in Protocol.STILL_CHUNK_SIZE chunks. The chunks wait in the send queue's bulk
+	 * lane, which holds only a couple of packets, so the thread is paced by the link and preview
+	 * images go ahead of it.
+	 */
+	private class StillSenderThread extends Thread {
+		private final byte[] mmJpeg;
+		private final int mmId;
+
+		public StillSenderThread(byte[] jpeg, int id) {
+			super("StillSenderThread");
+			mmJpeg = jpeg;
+			mmId = id;
+		}
+
+		@Override
+		public void run() {
+			FrameBufferPool pool = mBluetoothService.getFramePool();
+			for (int offset = 0; offset < mmJpeg.length; offset += Protocol.STILL_CHUNK_SIZE) {
+				int count = Math.min(Protocol.STILL_CHUNK_SIZE, mmJpeg.length - offset);
+				FrameBuffer chunk = pool.acquire(Protocol.STILL_CHUNK_HEADER_LENGTH + count);
+				byte[] data = chunk.getData();
+				FrameEncoder.writeInt(data, 0, mmId);
+				FrameEncoder.writeInt(data, 4, mmJpeg.length);
+				FrameEncoder.writeInt(data, 8, offset);
+				System.arraycopy(mmJpeg, offset, data, Protocol.STILL_CHUNK_HEADER_LENGTH, count);
+				chunk.setType(Protocol.HEADER_STILL_CHUNK);
+				chunk.setLength(Protocol.STILL_CHUNK_HEADER_LENGTH + count);
+				if (isInterrupted() || !mBluetoothService.write(chunk)) {
+					if(D) Log.d(TAG, "still " + mmId + " abandoned at " + offset + " bytes");
+					return;
 				}
-			} catch (Exception e) {
-				if(D) Log.d(TAG, "CheckQueueTimerTask failed in run", e);
+			}
+			if(D) Log.d(TAG, "sent still " + mmId + ", " + mmJpeg.length + " bytes");
+		}
+
+		public void cancel() {
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
 
-	/*private class SendImageTimerTask extends TimerTask {
+	// Samples the link telemetry, keeps a CSV row per sample and refreshes the overlay
+	private class StatsTimerTask extends TimerTask {
 
 		@Override
 		public void run() {
-			raiseSendImgFlag();
+			final LinkStats.Snapshot snapshot = mBluetoothService.getLinkStats().sample();
+			synchronized (mStatsCsv) {
+				mStatsCsv.append(snapshot.toCsvRow()).append('\n');
+			}
+			runOnUiThread(new Runnable() {
+				public void run() {
+					mStatsOverlay.setText(snapshot.toString());
+				}
+			});
 		}
-	}*/
-
-	byte[] concatByteArray(byte[] A, byte[] B) {
-		int aLen = A.length;
-		int bLen = B.length;
-		byte[] C = new byte[aLen + bLen];
-		System.arraycopy(A, 0, C, 0, aLen);
-		System.arraycopy(B, 0, C, aLen, bLen);
-		return C;
 	}
 
 	public void initializeActiveRole() {
 		// change menu icon to disconnect
 		connectMenuItem.setIcon(android.R.drawable.ic_menu_close_clear_cancel);
 		mTimer = new Timer();
+
+		// start a fresh telemetry log for this session
+		synchronized (mStatsCsv) {
+			mStatsCsv.setLength(0);
+			mStatsCsv.append(LinkStats.CSV_HEADER).append('\n');
+		}
+		mStatsTimerTask = new StatsTimerTask();
+		mTimer.scheduleAtFixedRate(mStatsTimerTask, STATS_INTERVAL, STATS_INTERVAL);
 	}
 	
 	public void initializeControllerRole() {
 		// Reconfigure framelayout to be a controllerpreview		
-		mPreview = new ControllerPreview(getApplicationContext());
+		mControllerPreview = new ControllerPreview(this, mBitmapPool, mBluetoothService.getLinkStats());
+		mControllerPreview.setAlignToVsync(mAlignToVsync);
+		mPreview = mControllerPreview;
 		mPreviewFrame.addView(mPreview);
+		mCompositor = new FrameCompositor();
+		mDecoderThread = new DecoderThread(mControllerPreview);
+		mDecoderThread.start();
+		mStillAssembler = new StillAssembler();
 
-		mTimerTask = new CheckQueueTimerTask();
-		mTimer.scheduleAtFixedRate(mTimerTask, 0, CHECK_QUEUE_INTERVAL);
 
 		// show options menu buttons
 		controlMenuItem.setVisible(true);
 		homeMenuItem.setVisible(true);
+		captureMenuItem.setVisible(true);
+
+		// tell the camera which codecs we decode
+		sendMessageWithHeader(Protocol.HEADER_CODEC, new byte[] { FrameCodec.CODEC_JPEG, FrameCodec.CODEC_LUMA_DEFLATE });
+
+		// ask the camera to keep several images in flight
+		sendMessageWithHeader(Protocol.HEADER_FLOW_CONTROL, ByteBuffer.allocate(4).putInt(DEFAULT_FLOW_WINDOW).array());
 		
 		if (hasSensors) {
 			mSensorManager.registerListener(this, mMagSensor, SensorManager.SENSOR_DELAY_NORMAL);
@@ -747,9 +1623,8 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 
 	public void initializeCameraRole() {
 		getCameraInstanceAndStartPreview();
-//		mTimerTask = new SendImageTimerTask();
-//		mTimer.scheduleAtFixedRate(mTimerTask, 0, SEND_IMAGE_INTERVAL);
-		sendImgFlag = true;
+		mCreditWindow.reset(mFlowWindow);
+		mQualityController.reset();
 		mRole.set(ROLE_CAMERA);
 	}
 	
@@ -759,7 +1634,7 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 
 		if (mTimer != null) {
 			// stop the timer
-			mTimerTask.cancel();
+			mStatsTimerTask.cancel();
 			mTimer.cancel();
 		}
 
@@ -769,6 +1644,14 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		mActionBar.setTitle(R.string.title_not_connected);
 		mActionBar.setSubtitle("");
 
+		// the next connection starts out in stop-and-wait until a window is negotiated, and at our
+		// own preview size until the controller sends its size
+		mFlowWindow = 1;
+		mViewerWidth = 0;
+		mViewerHeight = 0;
+		mPeerDecodesLuma = false;
+		chooseCodec();
+
 		mRole.set(ROLE_UNASSIGNED);
 	}
 	
@@ -776,10 +1659,19 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 		// everything we need to stop being the controller
 		
 		mSensorManager.unregisterListener(this);
+
+		// stop decoding, images still waiting to be drawn are dropped when the preview goes
+		if (mDecoderThread != null) {
+			mDecoderThread.cancel();
+			mDecoderThread = null;
+		}
+		mControllerPreview = null;
+		mBitmapPool.clear();
 		
 		// turn off buttons in menu
 		controlMenuItem.setVisible(false);
 		homeMenuItem.setVisible(false);
+		captureMenuItem.setVisible(false);
 	}
 
 	public void releaseCameraRole() {
@@ -788,11 +1680,6 @@ public class MainActivity extends Activity implements PreviewCallback, SensorEve
 	}
 
 	
-	byte[] intToByteArray(int input) {
-		// TODO Auto-generated method stub
-		return ByteBuffer.allocate(4).putInt(input).array();
-	}
-
 	@Override
 	public void onSensorChanged(SensorEvent event) {
 
@@ -0,0 +1,57 @@
+package com.example.lilwand;
+
+/**
+ * Helpers for NV21 preview frames: a full resolution luma plane followed by a half resolution plane
+ * of interleaved V and U samples.
+ */
+public final class Nv21 {
+	private Nv21() {
+	}
+
+	/**
+	 * Return the number of bytes in an NV21 frame.
+	 */
+	public static int getFrameSize(int width, int height) {
+		return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+	}
+
+	/**
+	 * Return the width or height of a frame downscaled by divisor, rounded down to an even number
+	 * so the chroma plane stays aligned.
+	 */
+	public static int getScaledSize(int size, int divisor) {
+		return size / divisor & ~1;
+	}
+
+	/**
+	 * Downscale a frame by keeping every divisor-th sample in each direction.
+	 *
+	 * @param dst
+	 *            Receives the downscaled frame, at least getFrameSize(getScaledSize(width, divisor),
+	 *            getScaledSize(height, divisor)) bytes
+	 */
+	public static void downscale(byte[] src, int width, int height, int divisor, byte[] dst) {
+		int dstWidth = getScaledSize(width, divisor);
+		int dstHeight = getScaledSize(height, divisor);
+
+		// luma
+		int out = 0;
+		for (int y = 0; y < dstHeight; y++) {
+			int row = y * divisor * width;
+			for (int x = 0; x < dstWidth; x++) {
+				dst[out++] = src[row + x * divisor];
+			}
+		}
+
+		// interleaved chroma, one VU pair per 2x2 block
+		int srcChroma = width * height;
+		for (int y = 0; y < dstHeight / 2; y++) {
+			int row = srcChroma + y * divisor * width;
+			for (int x = 0; x < dstWidth / 2; x++) {
+				int pair = row + x * divisor * 2;
+				dst[out++] = src[pair];
+				dst[out++] = src[pair + 1];
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.example.lilwand;
+
+/**
+ * Spaces image sends out to a target frame rate with a token bucket. A token is added every
+ * 1/fps seconds, up to the bucket's capacity, and each send takes one. With a capacity of one the
+ * sends are evenly spaced; a larger capacity lets a sender that was held up by flow control catch
+ * up with a short burst.
+ *
+ * Pacing is applied before flow control: the encoder waits for a token, then for a credit, so the
+ * rate never exceeds the target and a slow link slows it down further.
+ */
+public class PacingScheduler {
+	private final double mCapacity;
+	private long mIntervalNanos; // 0 when pacing is off
+	private double mTokens;
+	private long mLastRefill;
+
+	/**
+	 * @param fps
+	 *            The target frame rate, 0 for no pacing
+	 * @param capacity
+	 *            The most tokens that can be saved up, at least 1
+	 */
+	public PacingScheduler(double fps, double capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		mCapacity = capacity;
+		mTokens = capacity;
+		mLastRefill = System.nanoTime();
+		setTargetFps(fps);
+	}
+
+	/**
+	 * Change the target frame rate, 0 turns pacing off.
+	 */
+	public synchronized void setTargetFps(double fps) {
+		refill(System.nanoTime());
+		mIntervalNanos = fps > 0 ? (long) (1e9 / fps) : 0;
+		notifyAll();
+	}
+
+	public synchronized double getTargetFps() {
+		return mIntervalNanos == 0 ? 0 : 1e9 / mIntervalNanos;
+	}
+
+	/**
+	 * Take a token if one is available at the given time.
+	 */
+	public synchronized boolean tryAcquire(long nowNanos) {
+		refill(nowNanos);
+		if (mIntervalNanos == 0) {
+			return true;
+		}
+		if (mTokens >= 1) {
+			mTokens--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return how long until a token is available, 0 if one is available now.
+	 */
+	public synchronized long getDelay(long nowNanos) {
+		refill(nowNanos);
+		if (mIntervalNanos == 0 || mTokens >= 1) {
+			return 0;
+		}
+		return (long) Math.ceil((1 - mTokens) * mIntervalNanos);
+	}
+
+	/**
+	 * Wait for a token and take it.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (true) {
+			long now = System.nanoTime();
+			if (tryAcquire(now)) {
+				return;
+			}
+			long delay = Math.max(getDelay(now), 1);
+			wait(delay / 1000000L, (int) (delay % 1000000L));
+		}
+	}
+
+	private void refill(long nowNanos) {
+		if (mIntervalNanos > 0 && nowNanos > mLastRefill) {
+			mTokens = Math.min(mCapacity, mTokens + (double) (nowNanos - mLastRefill) / mIntervalNanos);
+		}
+		mLastRefill = nowNanos;
+	}
+}
@@ -0,0 +1,149 @@
+package com.example.lilwand;
+
+import java.util.zip.CRC32;
+
+/**
+ * Constants describing the packets exchanged between the camera and the controller. Every packet is
+ * laid out as
+ *
+ * <pre>
+ * [SYNC_0][SYNC_1][VERSION][type][int length][header check][payload][int payload CRC32][EOT]
+ * </pre>
+ *
+ * with ints in big-endian byte order. The header check is the low byte of the CRC32 of the version,
+ * type and length bytes. The sync word lets a reader that has lost its place scan forward to the
+ * next packet, and the checks stop it from trusting a damaged length or payload.
+ *
+ * A packet with a payload longer than MAX_CHUNK_LENGTH that isn't on the control channel is sent
+ * as a run of chunks, so control packets can be written in between and don't wait behind a whole
+ * image. A chunk is a packet whose type has FLAG_CHUNK set and whose payload is
+ * [int packet length][int offset] followed by the next part of the packet's payload. The chunks of a
+ * packet are sent in order and no other chunked packet starts until the last one has gone.
+ */
+public final class Protocol {
+	// Constants that indicate packet header types
+	public static final byte HEADER_IMAGE = 0;
+	public static final byte HEADER_CONTROLLER_CMD = 1;
+	public static final byte HEADER_CAMERA_PARAMETERS = 2;
+	public static final byte HEADER_IMAGE_RECEIVED = 3; // int payload: newest image consumed, see below
+	public static final byte HEADER_FLOW_CONTROL = 4; // int payload: flow control window
+	public static final byte HEADER_IMAGE_DELTA = 5; // changed tiles of the previous image, see below
+	public static final byte HEADER_VIEWER_SIZE = 6; // int width, int height of the controller's surface
+	public static final byte HEADER_CODEC = 7; // byte codec ids, see FrameCodec
+	public static final byte HEADER_IMAGE_STRIPE = 8; // one horizontal band of an image, see below
+	public static final byte HEADER_CAPTURE_STILL = 9; // no payload: take a full resolution picture
+	public static final byte HEADER_STILL_CHUNK = 10; // part of a picture, see below
+	public static final byte HEADER_KEYFRAME_REQUEST = 11; // no payload: send the next image whole
+
+	// Constants that indicate the channel a packet type is sent on, in order of priority
+	public static final int CHANNEL_CONTROL = 0; // commands, acks and parameters
+	public static final int CHANNEL_IMAGE = 1; // images and the codec changes between them
+	public static final int CHANNEL_BULK = 2; // sent only when nothing else is waiting
+	public static final int CHANNEL_COUNT = 3;
+
+	// Every HEADER_IMAGE, HEADER_IMAGE_DELTA and HEADER_IMAGE_STRIPE payload starts with
+	// [int image number]. The camera numbers images consecutively and the controller acknowledges
+	// them with a HEADER_IMAGE_RECEIVED naming the newest image it has consumed, which stands for
+	// every image before it as well. A gap in the numbers means images were lost or skipped, and
+	// the controller sends a HEADER_KEYFRAME_REQUEST so no delta is drawn over a missing image.
+	public static final int IMAGE_HEADER_LENGTH = 4;
+
+	// A HEADER_IMAGE_DELTA payload is [int image number][int frame width][int frame height]
+	// [int tile count] followed by [short left][short top][int JPEG length][JPEG] for each tile. The
+	// controller draws the tiles over the last image it showed, which must have the same size.
+	public static final int DELTA_HEADER_LENGTH = 12; // after the image number
+	public static final int DELTA_TILE_HEADER_LENGTH = 8;
+
+	// A HEADER_IMAGE_STRIPE payload is [int image number][byte stripe index][byte stripe count]
+	// [short top][short image width][short image height] followed by the JPEG of the stripe. The
+	// stripes of an image are sent together in any order and acknowledged as one image.
+	public static final int STRIPE_HEADER_LENGTH = 10;
+
+	// A HEADER_STILL_CHUNK payload is [int picture id][int picture length][int offset] followed by
+	// up to STILL_CHUNK_SIZE bytes of the picture's JPEG. Chunks are sent in order at low priority.
+	public static final int STILL_CHUNK_HEADER_LENGTH = 12;
+	public static final int STILL_CHUNK_SIZE = 8 * 1024;
+
+	// packet constants
+	public static final byte SYNC_0 = (byte) 0xA5;
+	public static final byte SYNC_1 = (byte) 0x5A;
+	public static final byte VERSION = 3;
+	public static final byte EOT = 0x04; // END OF TRANSMISSION BYTE
+	public static final int PACKET_HEADER_LENGTH = 9; // sync word + version + type + int length + check
+	public static final int PACKET_FOOTER_LENGTH = 5; // int CRC32 + EOT
+
+	// chunking constants
+	public static final int FLAG_CHUNK = 0x80; // set on the type byte of a chunk
+	public static final int CHUNK_HEADER_LENGTH = 8; // int packet length + int offset
+	public static final int MAX_CHUNK_LENGTH = 2 * 1024; // payload bytes carried by one chunk
+
+	// Largest payload a reader accepts. Anything bigger is treated as a damaged header.
+	public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+	private Protocol() {
+	}
+
+	/**
+	 * Return true for the packet types that carry a whole image.
+	 */
+	public static boolean isImage(int type) {
+		return type == HEADER_IMAGE || type == HEADER_IMAGE_DELTA;
+	}
+
+	/**
+	 * Return the channel a packet type is sent on, one of the CHANNEL_ constants.
+	 */
+	public static int getChannel(int type) {
+		if (type == HEADER_STILL_CHUNK) {
+			return CHANNEL_BULK;
+		}
+		// a codec change must stay in order with the images around it
+		if (isImage(type) || type == HEADER_IMAGE_STRIPE || type == HEADER_CODEC) {
+			return CHANNEL_IMAGE;
+		}
+		return CHANNEL_CONTROL;
+	}
+
+	/**
+	 * Return true if a packet is sent as a run of chunks.
+	 */
+	public static boolean isChunked(int type, int length) {
+		return length > MAX_CHUNK_LENGTH && getChannel(type) != CHANNEL_CONTROL;
+	}
+
+	/**
+	 * Return true if the packet is the first of an image, and so uses up a flow control credit:
+	 * a whole image or the first stripe of one.
+	 */
+	public static boolean startsImage(FrameBuffer frame) {
+		int type = frame.getType();
+		if (type == HEADER_IMAGE_STRIPE) {
+			return frame.getLength() >= STRIPE_HEADER_LENGTH && frame.getData()[4] == 0;
+		}
+		return isImage(type);
+	}
+
+	/**
+	 * Return the number of the image a packet belongs to, for the packet types that carry an image
+	 * or part of one.
+	 */
+	public static int getImageNumber(FrameBuffer frame) {
+		return FrameReader.readInt(frame.getData(), 0);
+	}
+
+	/**
+	 * Compute the header check byte over the version, type and length of a packet header.
+	 */
+	static byte headerCheck(CRC32 crc, byte[] header) {
+		return headerCheck(crc, header, 0);
+	}
+
+	/**
+	 * Compute the header check byte of a packet header that starts at offset.
+	 */
+	static byte headerCheck(CRC32 crc, byte[] buffer, int offset) {
+		crc.reset();
+		crc.update(buffer, offset + 2, 6);
+		return (byte) crc.getValue();
+	}
+}
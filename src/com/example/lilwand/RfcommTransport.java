@@ -0,0 +1,88 @@
+package com.example.lilwand;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * A Transport over a Bluetooth RFCOMM socket.
+ */
+public class RfcommTransport implements Transport {
+	private final BluetoothSocket mSocket;
+
+	public RfcommTransport(BluetoothSocket socket) {
+		mSocket = socket;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	public String getRemoteName() {
+		return mSocket.getRemoteDevice().getName();
+	}
+
+	public void close() throws IOException {
+		mSocket.close();
+	}
+
+	/**
+	 * Listens for incoming RFCOMM connections on an SDP record.
+	 */
+	public static class Server implements Transport.Server {
+		private final BluetoothServerSocket mServerSocket;
+
+		public Server(BluetoothAdapter adapter, String name, UUID uuid) throws IOException {
+			mServerSocket = adapter.listenUsingRfcommWithServiceRecord(name, uuid);
+		}
+
+		public Transport accept() throws IOException {
+			return new RfcommTransport(mServerSocket.accept());
+		}
+
+		public void close() throws IOException {
+			mServerSocket.close();
+		}
+	}
+
+	/**
+	 * Connects to the SDP record of a remote device.
+	 */
+	public static class Connector implements Transport.Connector {
+		private final BluetoothAdapter mAdapter;
+		private final BluetoothSocket mSocket;
+
+		public Connector(BluetoothAdapter adapter, BluetoothDevice device, UUID uuid) throws IOException {
+			mAdapter = adapter;
+			mSocket = device.createRfcommSocketToServiceRecord(uuid);
+		}
+
+		public Transport connect() throws IOException {
+			// Always cancel discovery because it will slow down a connection
+			mAdapter.cancelDiscovery();
+
+			// This is a blocking call and will only return on a
+			// successful connection or an exception
+			mSocket.connect();
+			return new RfcommTransport(mSocket);
+		}
+
+		public void cancel() {
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				// nothing left to clean up
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.example.lilwand;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded queue of packets waiting for the writer thread. What happens when a packet is offered
+ * to a full queue is decided by the overflow policy:
+ * <ul>
+ * <li>{@link #POLICY_BLOCK} waits until the writer has made room.</li>
+ * <li>{@link #POLICY_DROP_OLDEST_IMAGE} discards the oldest queued image to make room, whether it
+ * is a whole image, a delta or a set of stripes; control packets and codec changes are never
+ * discarded, so if the queue holds no images it blocks like POLICY_BLOCK.</li>
+ * <li>{@link #POLICY_REJECT} refuses the new packet.</li>
+ * </ul>
+ * The queue takes over the caller's reference to every packet offered, and releases the packets it
+ * drops or rejects. Packets dropped for lack of room are counted in the session's LinkStats.
+ *
+ * Each {@link Protocol#getChannel(int) channel} has its own lane and packets are taken from the
+ * highest priority lane that has any, so a command or ack never waits behind queued images. The
+ * control and image lanes hold up to the queue's capacity each and the overflow policy applies to
+ * them; the bulk lane holds BULK_CAPACITY packets and offering to it always waits when it is full.
+ * The time every packet spends in the queue is recorded per channel.
+ *
+ * Stripes are dropped a whole image at a time, the controller can't show part of one. Once the
+ * writer has taken a stripe of an image the rest of it are never dropped, and once an image's
+ * stripes have been dropped the ones still to be offered are refused.
+ */
+public class SendQueue {
+	// Constants that indicate the overflow policy
+	public static final int POLICY_BLOCK = 0;
+	public static final int POLICY_DROP_OLDEST_IMAGE = 1;
+	public static final int POLICY_REJECT = 2;
+
+	// Bulk packets queued at most, each one can hold up a live packet while it is written
+	public static final int BULK_CAPACITY = 2;
+
+	private final ArrayDeque<FrameBuffer> mControl;
+	private final ArrayDeque<FrameBuffer> mImages;
+	private final ArrayDeque<FrameBuffer> mBulk = new ArrayDeque<FrameBuffer>(BULK_CAPACITY);
+	private final int mCapacity;
+	private final LinkStats mStats;
+	private int mPolicy;
+	private boolean mClosed;
+	private long mDropped;
+	// images whose stripes are being written and were dropped, or NO_IMAGE
+	private long mTakenStripeImage = NO_IMAGE;
+	private long mDroppedStripeImage = NO_IMAGE;
+
+	private static final long NO_IMAGE = Long.MIN_VALUE;
+
+	public SendQueue(int capacity, int policy) {
+		this(capacity, policy, null);
+	}
+
+	/**
+	 * @param stats
+	 *            Where to count dropped packets and queueing delays, may be null
+	 */
+	public SendQueue(int capacity, int policy, LinkStats stats) {
+		mControl = new ArrayDeque<FrameBuffer>(capacity);
+		mImages = new ArrayDeque<FrameBuffer>(capacity);
+		mCapacity = capacity;
+		mPolicy = policy;
+		mStats = stats;
+	}
+
+	public synchronized void setPolicy(int policy) {
+		mPolicy = policy;
+		notifyAll();
+	}
+
+	/**
+	 * Add a packet to the tail of its channel's lane.
+	 *
+	 * @return true if the packet was queued, false if it was rejected or the queue is closed
+	 */
+	public synchronized boolean offer(FrameBuffer frame) throws InterruptedException {
+		int channel = Protocol.getChannel(frame.getType());
+		if (channel == Protocol.CHANNEL_BULK) {
+			return offerBulk(frame);
+		}
+		ArrayDeque<FrameBuffer> lane = channel == Protocol.CHANNEL_CONTROL ? mControl : mImages;
+		while (!mClosed && lane.size() >= mCapacity && !isDroppedStripe(frame)) {
+			if (mPolicy == POLICY_REJECT) {
+				break;
+			}
+			if (mPolicy == POLICY_DROP_OLDEST_IMAGE && lane == mImages && dropOldestImage()) {
+				continue;
+			}
+			wait();
+		}
+		if (mClosed || lane.size() >= mCapacity || isDroppedStripe(frame)) {
+			mDropped++;
+			if (!mClosed && mStats != null) {
+				mStats.recordDropped(LinkStats.STAGE_SEND, 1);
+			}
+			frame.release();
+			return false;
+		}
+
+		frame.setQueueTime(System.nanoTime());
+		lane.addLast(frame);
+		notifyAll();
+		return true;
+	}
+
+	private boolean offerBulk(FrameBuffer frame) throws InterruptedException {
+		while (!mClosed && mBulk.size() >= BULK_CAPACITY) {
+			wait();
+		}
+		if (mClosed) {
+			frame.release();
+			return false;
+		}
+		frame.setQueueTime(System.nanoTime());
+		mBulk.addLast(frame);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Remove the highest priority packet, waiting for one if the queue is empty.
+	 *
+	 * @return the packet, or null once the queue has been closed
+	 */
+	public synchronized FrameBuffer take() throws InterruptedException {
+		while (!mClosed && mControl.isEmpty() && mImages.isEmpty() && mBulk.isEmpty()) {
+			wait();
+		}
+		return poll();
+	}
+
+	/**
+	 * Remove the highest priority packet without waiting.
+	 *
+	 * @return the packet, or null if the queue is empty or closed
+	 */
+	public synchronized FrameBuffer poll() {
+		if (mClosed) {
+			return null;
+		}
+		if (!mControl.isEmpty()) {
+			return remove(mControl, Protocol.CHANNEL_CONTROL);
+		}
+		if (!mImages.isEmpty()) {
+			FrameBuffer frame = remove(mImages, Protocol.CHANNEL_IMAGE);
+			if (frame.getType() == Protocol.HEADER_IMAGE_STRIPE) {
+				mTakenStripeImage = Protocol.getImageNumber(frame);
+			}
+			return frame;
+		}
+		return remove(mBulk, Protocol.CHANNEL_BULK);
+	}
+
+	/**
+	 * Remove the oldest control packet without waiting. The writer calls this between the chunks of
+	 * a long packet.
+	 *
+	 * @return the packet, or null if no control packet is queued or the queue is closed
+	 */
+	public synchronized FrameBuffer pollControl() {
+		if (mClosed) {
+			return null;
+		}
+		return remove(mControl, Protocol.CHANNEL_CONTROL);
+	}
+
+	private FrameBuffer remove(ArrayDeque<FrameBuffer> lane, int channel) {
+		FrameBuffer frame = lane.pollFirst();
+		if (frame != null) {
+			if (mStats != null) {
+				mStats.recordQueueDelay(channel, System.nanoTime() - frame.getQueueTime());
+			}
+			notifyAll();
+		}
+		return frame;
+	}
+
+	/**
+	 * Close the queue, releasing any packets still waiting and waking up blocked threads.
+	 */
+	public synchronized void close() {
+		mClosed = true;
+		release(mControl);
+		release(mImages);
+		release(mBulk);
+		notifyAll();
+	}
+
+	private static void release(ArrayDeque<FrameBuffer> lane) {
+		FrameBuffer frame;
+		while ((frame = lane.pollFirst()) != null) {
+			frame.release();
+		}
+	}
+
+	public synchronized int size() {
+		return mControl.size() + mImages.size() + mBulk.size();
+	}
+
+	/**
+	 * Return the number of packets dropped or rejected because the queue was full or closed.
+	 */
+	public synchronized long getDroppedCount() {
+		return mDropped;
+	}
+
+	private boolean isDroppedStripe(FrameBuffer frame) {
+		return frame.getType() == Protocol.HEADER_IMAGE_STRIPE
+				&& Protocol.getImageNumber(frame) == mDroppedStripeImage;
+	}
+
+	// Drop every queued packet of the oldest image that can go whole
+	private boolean dropOldestImage() {
+		long image = NO_IMAGE;
+		for (FrameBuffer queued : mImages) {
+			int type = queued.getType();
+			if (Protocol.isImage(type) || (type == Protocol.HEADER_IMAGE_STRIPE
+					&& Protocol.getImageNumber(queued) != mTakenStripeImage)) {
+				image = Protocol.getImageNumber(queued);
+				break;
+			}
+		}
+		if (image == NO_IMAGE) {
+			return false;
+		}
+
+		Iterator<FrameBuffer> it = mImages.iterator();
+		while (it.hasNext()) {
+			FrameBuffer queued = it.next();
+			int type = queued.getType();
+			if ((Protocol.isImage(type) || type == Protocol.HEADER_IMAGE_STRIPE)
+					&& Protocol.getImageNumber(queued) == image) {
+				if (type == Protocol.HEADER_IMAGE_STRIPE) {
+					mDroppedStripeImage = image;
+				}
+				it.remove();
+				queued.release();
+				mDropped++;
+				if (mStats != null) {
+					mStats.recordDropped(LinkStats.STAGE_SEND, 1);
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,77 @@
+package com.example.lilwand;
+
+/**
+ * Puts a picture sent as HEADER_STILL_CHUNK packets back together on the controller. Chunks come in
+ * order; a chunk that doesn't start where the last one ended means one went missing on the link
+ * and the picture is abandoned.
+ */
+public class StillAssembler {
+	// Constants returned by onChunk
+	public static final int RESULT_IN_PROGRESS = 0;
+	public static final int RESULT_COMPLETE = 1;
+	public static final int RESULT_FAILED = 2;
+
+	// refuse pictures claiming to be larger than this, their header is damaged
+	private static final int MAX_STILL_LENGTH = 32 * 1024 * 1024;
+
+	private int mId = -1;
+	private byte[] mData;
+	private int mReceived;
+	private boolean mFailed;
+
+	/**
+	 * Add a chunk.
+	 *
+	 * @return one of the RESULT_ constants. A chunk of a picture that already failed or completed is
+	 *         ignored and reported as RESULT_IN_PROGRESS.
+	 */
+	public int onChunk(byte[] payload, int length) {
+		if (length < Protocol.STILL_CHUNK_HEADER_LENGTH) {
+			return RESULT_IN_PROGRESS;
+		}
+		int id = FrameReader.readInt(payload, 0);
+		int total = FrameReader.readInt(payload, 4);
+		int offset = FrameReader.readInt(payload, 8);
+		int count = length - Protocol.STILL_CHUNK_HEADER_LENGTH;
+
+		if (id != mId) {
+			// a new picture
+			mId = id;
+			mReceived = 0;
+			mFailed = total <= 0 || total > MAX_STILL_LENGTH;
+			mData = mFailed ? null : new byte[total];
+			if (mFailed) {
+				return RESULT_FAILED;
+			}
+		}
+		if (mFailed || mData == null || mReceived == mData.length) {
+			return RESULT_IN_PROGRESS;
+		}
+		if (offset != mReceived || total != mData.length || offset + count > total) {
+			mFailed = true;
+			mData = null;
+			return RESULT_FAILED;
+		}
+
+		System.arraycopy(payload, Protocol.STILL_CHUNK_HEADER_LENGTH, mData, offset, count);
+		mReceived += count;
+		return mReceived == mData.length ? RESULT_COMPLETE : RESULT_IN_PROGRESS;
+	}
+
+	/**
+	 * Return the share of the current picture received so far, 0-100.
+	 */
+	public int getProgress() {
+		if (mData == null) {
+			return 0;
+		}
+		return (int) (100L * mReceived / mData.length);
+	}
+
+	/**
+	 * Return the completed picture, or null if it isn't complete.
+	 */
+	public byte[] getStill() {
+		return mData != null && mReceived == mData.length ? mData : null;
+	}
+}
@@ -0,0 +1,75 @@
+package com.example.lilwand;
+
+/**
+ * Works out when the controller should hand back the credit for a striped image. An image is
+ * acknowledged once all of its stripes have been decoded. Stripes of one image all arrive before
+ * the next image's, so if a stripe of a newer image arrives first the older one lost a stripe on
+ * the link and is acknowledged then, incomplete, so the camera doesn't wait for it forever.
+ *
+ * Stripes are handed to a tracker one at a time, in the order they arrived.
+ */
+public class StripeTracker {
+	private int mFrame = -1;
+	private int mCount;
+	private int mDecoded;
+	private boolean mAcked = true;
+	private long mIncomplete;
+
+	/**
+	 * Record a stripe arriving.
+	 *
+	 * @param frame
+	 *            The number of the image the stripe belongs to
+	 * @param count
+	 *            The number of stripes in that image
+	 * @return the number of credits to hand back now: one if the stripe started a new image while
+	 *         the previous one was still missing stripes
+	 */
+	public int onStripeReceived(int frame, int count) {
+		if (frame == mFrame) {
+			return 0;
+		}
+		int credits = 0;
+		if (!mAcked) {
+			credits = 1;
+			mIncomplete++;
+		}
+		mFrame = frame;
+		mCount = count;
+		mDecoded = 0;
+		mAcked = false;
+		return credits;
+	}
+
+	/**
+	 * Return the number of the image whose stripes are arriving, the one left incomplete when
+	 * {@link #onStripeReceived(int, int)} hands back a credit.
+	 */
+	public int getImage() {
+		return mFrame;
+	}
+
+	/**
+	 * Record a stripe finishing decoding, successfully or not.
+	 *
+	 * @return true if this completed its image and the image should be acknowledged now
+	 */
+	public boolean onStripeDecoded(int frame) {
+		if (frame != mFrame || mAcked) {
+			// its image was already acknowledged as incomplete
+			return false;
+		}
+		if (++mDecoded == mCount) {
+			mAcked = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the number of images acknowledged with stripes missing.
+	 */
+	public long getIncompleteCount() {
+		return mIncomplete;
+	}
+}
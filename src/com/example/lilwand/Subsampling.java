@@ -0,0 +1,55 @@
+package com.example.lilwand;
+
+/**
+ * Helpers for images decoded subsampled by a power of two, the way BitmapFactory does with
+ * inSampleSize. The controller decodes keyframes no bigger than its surface, while the camera
+ * places delta tiles in full size coordinates, so the compositor maps them through here.
+ */
+public final class Subsampling {
+	private Subsampling() {
+	}
+
+	/**
+	 * Return the largest power of two that keeps an image at least as big as the target, or 1 if
+	 * there is no target.
+	 */
+	public static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		if (targetWidth <= 0 || targetHeight <= 0) {
+			return sampleSize;
+		}
+		while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Return a size or a position subsampled by sampleSize, rounded up like the JPEG decoder rounds
+	 * the image size. Positions rounded this way leave no gap between neighbouring tiles.
+	 */
+	public static int scale(int size, int sampleSize) {
+		return (size + sampleSize - 1) / sampleSize;
+	}
+
+	/**
+	 * Work out the sample size an image of width by height was decoded with to come out at the
+	 * scaled size. Decoders differ in how they round, so rounding down is accepted too if no sample
+	 * size fits rounding up.
+	 *
+	 * @return the sample size, or -1 if the scaled size isn't the image at any power of two
+	 */
+	public static int findSampleSize(int width, int height, int scaledWidth, int scaledHeight) {
+		for (int sampleSize = 1; sampleSize <= width && sampleSize <= height; sampleSize *= 2) {
+			if (scaledWidth == scale(width, sampleSize) && scaledHeight == scale(height, sampleSize)) {
+				return sampleSize;
+			}
+		}
+		for (int sampleSize = 1; sampleSize <= width && sampleSize <= height; sampleSize *= 2) {
+			if (scaledWidth == width / sampleSize && scaledHeight == height / sampleSize) {
+				return sampleSize;
+			}
+		}
+		return -1;
+	}
+}
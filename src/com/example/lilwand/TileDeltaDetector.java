@@ -0,0 +1,164 @@
+package com.example.lilwand;
+
+/**
+ * Finds the tiles of a preview frame that differ from what the controller is showing. The luma
+ * plane of each frame is compared, tile by tile, against a reference copy of the luma the
+ * controller last received. A tile counts as changed when enough of its sampled pixels differ by
+ * more than a noise threshold. The reference only moves forward for tiles that are actually sent,
+ * so slow changes accumulate until they are sent rather than drifting by unnoticed.
+ *
+ * A detector belongs to the encoding thread.
+ */
+public class TileDeltaDetector {
+	// a pixel differs when its luma moved by more than this
+	private static final int PIXEL_THRESHOLD = 20;
+	// a tile changed when more than 1 in this many of its sampled pixels differ
+	private static final int CHANGED_FRACTION = 64;
+	// compare every SAMPLE_STEP-th pixel of every SAMPLE_STEP-th row
+	private static final int SAMPLE_STEP = 2;
+
+	private final int mTileSize;
+	private final int mKeyframeInterval;
+
+	private byte[] mReference;
+	private int mWidth;
+	private int mHeight;
+	private int mColumns;
+	private int mRows;
+	private int[] mChanged;
+	private int mChangedCount;
+	private int mFramesSinceKeyframe;
+
+	/**
+	 * @param tileSize
+	 *            Width and height of a tile in pixels, a multiple of 16 so tiles line up with JPEG
+	 *            blocks
+	 * @param keyframeInterval
+	 *            The number of delta frames sent between full frames
+	 */
+	public TileDeltaDetector(int tileSize, int keyframeInterval) {
+		if (tileSize <= 0 || tileSize % 16 != 0) {
+			throw new IllegalArgumentException("tile size must be a multiple of 16");
+		}
+		mTileSize = tileSize;
+		mKeyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Return true if the next frame must be sent in full: nothing has been sent yet, the frame size
+	 * changed, the keyframe interval is up or the detector was invalidated.
+	 */
+	public boolean isKeyframeDue(int width, int height) {
+		return mReference == null || width != mWidth || height != mHeight || mFramesSinceKeyframe >= mKeyframeInterval;
+	}
+
+	/**
+	 * Forget the reference, e.g. because a frame may not have reached the controller.
+	 */
+	public void invalidate() {
+		mReference = null;
+	}
+
+	/**
+	 * Compare a frame against the reference. Only valid when no keyframe is due.
+	 *
+	 * @return the number of changed tiles, see {@link #getChangedTile(int)}
+	 */
+	public int detect(byte[] luma) {
+		mChangedCount = 0;
+		for (int row = 0; row < mRows; row++) {
+			for (int column = 0; column < mColumns; column++) {
+				if (tileChanged(luma, column * mTileSize, row * mTileSize)) {
+					mChanged[mChangedCount++] = row * mColumns + column;
+				}
+			}
+		}
+		return mChangedCount;
+	}
+
+	public int getChangedCount() {
+		return mChangedCount;
+	}
+
+	/**
+	 * Return the index of the i-th changed tile found by the last {@link #detect(byte[])}. Tile
+	 * indices run along rows, starting at the top left.
+	 */
+	public int getChangedTile(int i) {
+		return mChanged[i];
+	}
+
+	public int getTileCount() {
+		return mColumns * mRows;
+	}
+
+	public int getTileLeft(int tile) {
+		return tile % mColumns * mTileSize;
+	}
+
+	public int getTileTop(int tile) {
+		return tile / mColumns * mTileSize;
+	}
+
+	public int getTileWidth(int tile) {
+		return Math.min(mTileSize, mWidth - getTileLeft(tile));
+	}
+
+	public int getTileHeight(int tile) {
+		return Math.min(mTileSize, mHeight - getTileTop(tile));
+	}
+
+	/**
+	 * Record that a full frame was sent and make it the reference.
+	 */
+	public void commitKeyframe(byte[] luma, int width, int height) {
+		if (mReference == null || mReference.length < width * height) {
+			mReference = new byte[width * height];
+		}
+		if (width != mWidth || height != mHeight) {
+			mWidth = width;
+			mHeight = height;
+			mColumns = (width + mTileSize - 1) / mTileSize;
+			mRows = (height + mTileSize - 1) / mTileSize;
+			mChanged = new int[mColumns * mRows];
+		}
+		System.arraycopy(luma, 0, mReference, 0, width * height);
+		mFramesSinceKeyframe = 0;
+	}
+
+	/**
+	 * Record that the changed tiles found by the last {@link #detect(byte[])} were sent and copy them
+	 * into the reference.
+	 */
+	public void commitChangedTiles(byte[] luma) {
+		for (int i = 0; i < mChangedCount; i++) {
+			int tile = mChanged[i];
+			int left = getTileLeft(tile);
+			int top = getTileTop(tile);
+			int width = getTileWidth(tile);
+			int bottom = top + getTileHeight(tile);
+			for (int y = top; y < bottom; y++) {
+				System.arraycopy(luma, y * mWidth + left, mReference, y * mWidth + left, width);
+			}
+		}
+		mFramesSinceKeyframe++;
+	}
+
+	private boolean tileChanged(byte[] luma, int left, int top) {
+		int right = Math.min(left + mTileSize, mWidth);
+		int bottom = Math.min(top + mTileSize, mHeight);
+		int samples = ((right - left + SAMPLE_STEP - 1) / SAMPLE_STEP) * ((bottom - top + SAMPLE_STEP - 1) / SAMPLE_STEP);
+		int limit = samples / CHANGED_FRACTION;
+		int differing = 0;
+		for (int y = top; y < bottom; y += SAMPLE_STEP) {
+			int row = y * mWidth;
+			for (int x = left; x < right; x += SAMPLE_STEP) {
+				int diff = (luma[row + x] & 0xff) - (mReference[row + x] & 0xff);
+				if ((diff > PIXEL_THRESHOLD || diff < -PIXEL_THRESHOLD) && ++differing > limit) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
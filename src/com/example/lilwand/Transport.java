@@ -0,0 +1,56 @@
+package com.example.lilwand;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected, reliable, ordered byte stream between the camera and the controller. BluetoothService
+ * runs its reading and writing threads on top of a Transport, which in the app is always RFCOMM
+ * ({@link RfcommTransport}). The benchmarks stream packets over TCP and in-memory implementations.
+ */
+public interface Transport {
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Return a human readable name for the other end of the connection.
+	 */
+	String getRemoteName();
+
+	/**
+	 * Close the connection. Blocked reads and writes on either stream fail with an IOException.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * The listening end of a transport.
+	 */
+	public interface Server {
+		/**
+		 * Block until a connection is made.
+		 */
+		Transport accept() throws IOException;
+
+		/**
+		 * Stop listening. A blocked accept() fails with an IOException.
+		 */
+		void close() throws IOException;
+	}
+
+	/**
+	 * Makes an outgoing connection.
+	 */
+	public interface Connector {
+		/**
+		 * Block until the connection is made or fails.
+		 */
+		Transport connect() throws IOException;
+
+		/**
+		 * Abort the connection attempt. A blocked connect() fails with an IOException.
+		 */
+		void cancel();
+	}
+}